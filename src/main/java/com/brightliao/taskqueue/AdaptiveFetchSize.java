@@ -0,0 +1,48 @@
+package com.brightliao.taskqueue;
+
+public class AdaptiveFetchSize {
+
+    private static final double SMOOTHING_FACTOR = 0.2;
+
+    private final int workerPoolSize;
+    private final int minFetchSize;
+    private final int maxFetchSize;
+    private double averageTaskMillis = -1;
+    private double averageClaimMillis = -1;
+
+    public AdaptiveFetchSize(int workerPoolSize, int minFetchSize, int maxFetchSize) {
+        this.workerPoolSize = workerPoolSize;
+        this.minFetchSize = Math.min(minFetchSize, maxFetchSize);
+        this.maxFetchSize = maxFetchSize;
+    }
+
+    public synchronized void onTaskFinished(double taskMillis) {
+        averageTaskMillis = smooth(averageTaskMillis, taskMillis);
+    }
+
+    public synchronized void onTasksClaimed(double claimMillis) {
+        averageClaimMillis = smooth(averageClaimMillis, claimMillis);
+    }
+
+    // 0 means there is nothing to claim for now
+    public synchronized int next(int freeWorkers, int prefetchedTasks) {
+        int wanted = freeWorkers + targetPrefetchedTasks() - prefetchedTasks;
+        if (wanted <= 0) {
+            return 0;
+        }
+        return Math.min(Math.max(wanted, minFetchSize), maxFetchSize);
+    }
+
+    // enough tasks for all workers to pick up while the next claim is on its way
+    synchronized int targetPrefetchedTasks() {
+        if (averageTaskMillis < 0 || averageClaimMillis < 0) {
+            return 0;
+        }
+        var completionsPerClaim = workerPoolSize * averageClaimMillis / Math.max(averageTaskMillis, 1);
+        return (int) Math.min(maxFetchSize, Math.ceil(completionsPerClaim));
+    }
+
+    private static double smooth(double average, double sample) {
+        return average < 0 ? sample : average + SMOOTHING_FACTOR * (sample - average);
+    }
+}
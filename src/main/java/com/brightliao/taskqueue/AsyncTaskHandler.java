@@ -0,0 +1,10 @@
+package com.brightliao.taskqueue;
+
+import java.util.concurrent.CompletionStage;
+
+// for handlers waiting on i/o, the task takes no worker while its stage is not completed.
+// the task succeeds or fails with the stage, run should return as soon as the i/o is started
+public interface AsyncTaskHandler {
+
+    CompletionStage<?> run(String argString, TaskContext context);
+}
@@ -0,0 +1,32 @@
+package com.brightliao.taskqueue;
+
+import java.util.List;
+
+// collects the failures of the tasks in a batch, tasks not failed are succeeded when the handler returns
+public class BatchResult {
+
+    private final List<TaskContext> contexts;
+    private final Exception[] failures;
+
+    BatchResult(List<TaskContext> contexts) {
+        this.contexts = contexts;
+        this.failures = new Exception[contexts.size()];
+    }
+
+    public int size() {
+        return contexts.size();
+    }
+
+    public void fail(int index, Exception e) {
+        failures[index] = e;
+    }
+
+    // a task cancelled while the batch is running keeps its cancelled status whatever the result is
+    public boolean isCancelled(int index) {
+        return contexts.get(index).isCancelled();
+    }
+
+    Exception getFailure(int index) {
+        return failures[index];
+    }
+}
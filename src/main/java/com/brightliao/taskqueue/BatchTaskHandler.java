@@ -0,0 +1,11 @@
+package com.brightliao.taskqueue;
+
+import java.util.List;
+
+// handles the args of many tasks of one type in one call, so that a bulk write or call is shared by the tasks
+public interface BatchTaskHandler {
+
+    // args are in the order of the tasks, a failed task is reported through the result by its index,
+    // an exception thrown fails all the tasks of the batch
+    void run(List<String> argStrings, BatchResult result);
+}
@@ -0,0 +1,66 @@
+package com.brightliao.taskqueue;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.TimeZone;
+
+// the task_consumers table shared by the task repositories, one lease row per consumer node
+class JdbcTaskConsumers {
+
+    private static final String UPSERT_LEASE_SQL = "MERGE INTO task_consumers (node_id, lease_expires_at) "
+            + "KEY (node_id) VALUES (?, ?)";
+    private static final String POSTGRESQL_UPSERT_LEASE_SQL = "INSERT INTO task_consumers (node_id, lease_expires_at) "
+            + "VALUES (?, ?) ON CONFLICT (node_id) DO UPDATE SET lease_expires_at = EXCLUDED.lease_expires_at";
+    private static final String MYSQL_UPSERT_LEASE_SQL = "INSERT INTO task_consumers (node_id, lease_expires_at) "
+            + "VALUES (?, ?) ON DUPLICATE KEY UPDATE lease_expires_at = VALUES(lease_expires_at)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TimeZone jdbcTimeZone;
+    private volatile String upsertLeaseSql;
+
+    JdbcTaskConsumers(JdbcTemplate jdbcTemplate, TimeZone jdbcTimeZone) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.jdbcTimeZone = jdbcTimeZone;
+    }
+
+    // a single upsert, as the claim and the heartbeat of a starting node may both create the lease at the same time,
+    // an update followed by an insert fails one of them on the primary key
+    void renewLease(String nodeId, LocalDateTime leaseExpiresAt) {
+        jdbcTemplate.update(upsertLeaseSql(), ps -> {
+            ps.setString(1, nodeId);
+            JdbcTimestamps.set(ps, 2, leaseExpiresAt, jdbcTimeZone);
+        });
+    }
+
+    List<String> findExpired(LocalDateTime now) {
+        return jdbcTemplate.query("SELECT node_id FROM task_consumers WHERE lease_expires_at < ?",
+                ps -> JdbcTimestamps.set(ps, 1, now, jdbcTimeZone),
+                (rs, rowNum) -> rs.getString("node_id"));
+    }
+
+    int delete(String nodeId, LocalDateTime expiredBefore) {
+        return jdbcTemplate.update("DELETE FROM task_consumers WHERE node_id = ? AND lease_expires_at < ?",
+                ps -> {
+                    ps.setString(1, nodeId);
+                    JdbcTimestamps.set(ps, 2, expiredBefore, jdbcTimeZone);
+                });
+    }
+
+    private String upsertLeaseSql() {
+        if (upsertLeaseSql == null) {
+            var databaseProductName = jdbcTemplate.execute(
+                    (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+            if ("PostgreSQL".equals(databaseProductName)) {
+                upsertLeaseSql = POSTGRESQL_UPSERT_LEASE_SQL;
+            } else if ("MySQL".equals(databaseProductName)) {
+                upsertLeaseSql = MYSQL_UPSERT_LEASE_SQL;
+            } else {
+                upsertLeaseSql = UPSERT_LEASE_SQL;
+            }
+        }
+        return upsertLeaseSql;
+    }
+}
@@ -0,0 +1,98 @@
+package com.brightliao.taskqueue;
+
+import com.brightliao.taskqueue.TaskEvent.Type;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.stream.Collectors;
+
+// the task_events table shared by the task repositories, the events of a task are capped by dropping the oldest
+class JdbcTaskEvents {
+
+    private static final String INSERT_EVENT_SQL = "INSERT INTO task_events (task_id, event_type, message, created_at) ";
+    // keeps the latest events of the tasks selected by the %s subquery, the derived table lets mysql select
+    // from the table it deletes from
+    private static final String TRIM_EVENTS_SQL = "DELETE FROM task_events WHERE id IN (SELECT id FROM ("
+            + "SELECT e.id FROM task_events e WHERE e.task_id IN (%s) "
+            + "AND (SELECT COUNT(*) FROM task_events n WHERE n.task_id = e.task_id AND n.id > e.id) >= ?) trimmed)";
+    private static final int INSERT_BATCH_SIZE = 50;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TimeZone jdbcTimeZone;
+
+    JdbcTaskEvents(JdbcTemplate jdbcTemplate, TimeZone jdbcTimeZone) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.jdbcTimeZone = jdbcTimeZone;
+    }
+
+    void addEvents(List<TaskEvent> events, int maxEventsPerTask) {
+        if (events.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_EVENT_SQL + "VALUES (?, ?, ?, ?)", events, INSERT_BATCH_SIZE, (ps, event) -> {
+            ps.setLong(1, event.getTaskId());
+            ps.setString(2, event.getType().name());
+            ps.setString(3, event.getMessage());
+            JdbcTimestamps.set(ps, 4, event.getCreatedAt(), jdbcTimeZone);
+        });
+        var taskIds = events.stream().map(TaskEvent::getTaskId).distinct().collect(Collectors.toList());
+        jdbcTemplate.update(String.format(TRIM_EVENTS_SQL, placeholders(taskIds.size())), ps -> {
+            for (int i = 0; i < taskIds.size(); i++) {
+                ps.setLong(i + 1, taskIds.get(i));
+            }
+            ps.setInt(taskIds.size() + 1, maxEventsPerTask);
+        });
+    }
+
+    // records an event for each task selected by the condition on the tasks table, called before the tasks are
+    // recovered from zombies so that the condition still selects them. tasks out of attempts go to dead letter
+    void addZombieEvents(String tasksCondition, ParameterBinder binder, LocalDateTime now, String message,
+            int maxEventsPerTask) {
+        jdbcTemplate.update(INSERT_EVENT_SQL + "SELECT id, CASE WHEN attempts >= max_attempts THEN ? ELSE ? END, ?, ? "
+                        + "FROM tasks WHERE " + tasksCondition,
+                ps -> {
+                    ps.setString(1, Type.DEAD_LETTER.name());
+                    ps.setString(2, Type.ZOMBIE_RECOVERED.name());
+                    ps.setString(3, message);
+                    JdbcTimestamps.set(ps, 4, now, jdbcTimeZone);
+                    binder.bind(ps, 5);
+                });
+        jdbcTemplate.update(String.format(TRIM_EVENTS_SQL, "SELECT id FROM tasks WHERE " + tasksCondition),
+                ps -> ps.setInt(binder.bind(ps, 1), maxEventsPerTask));
+    }
+
+    List<TaskEvent> findEvents(long taskId) {
+        return jdbcTemplate.query("SELECT id, task_id, event_type, message, created_at FROM task_events "
+                        + "WHERE task_id = ? ORDER BY id",
+                ps -> ps.setLong(1, taskId),
+                (rs, rowNum) -> new TaskEvent(rs.getLong("id"), rs.getLong("task_id"),
+                        Type.valueOf(rs.getString("event_type")), rs.getString("message"),
+                        JdbcTimestamps.get(rs, "created_at", jdbcTimeZone)));
+    }
+
+    void deleteEvents(Collection<Long> taskIds) {
+        var idList = new ArrayList<>(taskIds);
+        jdbcTemplate.update("DELETE FROM task_events WHERE task_id IN (" + placeholders(idList.size()) + ")", ps -> {
+            for (int i = 0; i < idList.size(); i++) {
+                ps.setLong(i + 1, idList.get(i));
+            }
+        });
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    // binds the parameters of a condition from the index, returns the next index
+    interface ParameterBinder {
+
+        int bind(PreparedStatement ps, int fromIndex) throws SQLException;
+    }
+}
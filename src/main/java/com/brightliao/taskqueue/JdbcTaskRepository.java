@@ -0,0 +1,585 @@
+package com.brightliao.taskqueue;
+
+import static java.time.temporal.ChronoUnit.MILLIS;
+
+import com.brightliao.taskqueue.Task.TaskStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.stream.Collectors;
+
+@Service
+@ConditionalOnProperty(name = "task.repository", havingValue = "jdbc")
+public class JdbcTaskRepository implements TaskRepository {
+
+    private static final String TASK_COLUMNS = "id, task_type, task_arg, status, message, version, "
+            + "created_at, due_at, priority, rank_at, attempts, max_attempts, owner_id, "
+            + "started_at, run_at, ended_at, heartbeat_at, partition_no, dedup_key";
+    private static final String INSERT_TASK_SQL = "INSERT INTO tasks (" + TASK_COLUMNS + ") "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_TASK_SQL = "UPDATE tasks SET "
+            + "status = ?, message = ?, version = ?, due_at = ?, rank_at = ?, attempts = ?, max_attempts = ?, "
+            + "owner_id = ?, started_at = ?, run_at = ?, ended_at = ?, heartbeat_at = ? "
+            + "WHERE id = ? AND version < ?";
+    // must match the increment of tasks_seq, ids are allocated in the same pooled way as hibernate does
+    private static final int ID_ALLOCATION_SIZE = 50;
+    private static final int INSERT_BATCH_SIZE = 50;
+    private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+    private static final String NEW_TASKS_SIGNAL = "new_tasks";
+    private static final List<TaskStatus> OWNED_STATUSES = List.of(TaskStatus.STARTED, TaskStatus.RUNNING);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TimeZone jdbcTimeZone;
+    private final JdbcTaskEvents taskEvents;
+    private final JdbcTaskConsumers taskConsumers;
+    private final JdbcUniqueTasks uniqueTasks;
+    private volatile String databaseProductName;
+    private long nextId = 1;
+    private long maxAllocatedId = 0;
+
+    public JdbcTaskRepository(JdbcTemplate jdbcTemplate,
+            @Value("${spring.jpa.properties.hibernate.jdbc.time_zone:}") String jdbcTimeZone) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.jdbcTimeZone = jdbcTimeZone.isEmpty() ? null : TimeZone.getTimeZone(jdbcTimeZone);
+        this.taskEvents = new JdbcTaskEvents(jdbcTemplate, this.jdbcTimeZone);
+        this.taskConsumers = new JdbcTaskConsumers(jdbcTemplate, this.jdbcTimeZone);
+        this.uniqueTasks = new JdbcUniqueTasks(jdbcTemplate, this.jdbcTimeZone);
+    }
+
+    private List<Task> findNewTasks(int maxCount, Collection<String> excludedTaskTypes, Collection<Integer> partitions) {
+        var lockClause = isPostgreSql() || isMySql() ? "FOR UPDATE SKIP LOCKED" : "FOR UPDATE";
+        var now = LocalDateTime.now();
+        return jdbcTemplate.query("SELECT " + TASK_COLUMNS + " FROM tasks "
+                        + "WHERE status = ? AND rank_at <= ? AND due_at <= ? " + excludedTaskTypesClause(excludedTaskTypes)
+                        + partitionsClause(partitions)
+                        // status is fixed, ordering by it too lets h2 pick idx_tasks_status_rank_at
+                        + "ORDER BY status, rank_at LIMIT ? " + lockClause,
+                ps -> {
+                    ps.setString(1, TaskStatus.PENDING.name());
+                    setTimestamp(ps, 2, now);
+                    setTimestamp(ps, 3, now);
+                    int index = setInts(ps, setStrings(ps, 4, excludedTaskTypes), partitions);
+                    ps.setInt(index, maxCount);
+                },
+                this::mapTask);
+    }
+
+    @Override
+    public LocalDateTime findNextDueAt(Collection<String> excludedTaskTypes) {
+        return jdbcTemplate.query("SELECT MIN(due_at) AS due_at FROM tasks WHERE status = ? "
+                        + excludedTaskTypesClause(excludedTaskTypes),
+                ps -> {
+                    ps.setString(1, TaskStatus.PENDING.name());
+                    setStrings(ps, 2, excludedTaskTypes);
+                },
+                (rs, rowNum) -> JdbcTimestamps.get(rs, "due_at", jdbcTimeZone)).get(0);
+    }
+
+    @Override
+    public List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId) {
+        return claimNewTasks(maxCount, excludedTaskTypes, ownerId, List.of());
+    }
+
+    @Override
+    public List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId,
+            Collection<Integer> partitions) {
+        if (isPostgreSql()) {
+            return claimNewTasksByUpdateReturning(maxCount, excludedTaskTypes, ownerId, partitions);
+        }
+        var tasks = findNewTasks(maxCount, excludedTaskTypes, partitions);
+        if (tasks.isEmpty()) {
+            return tasks;
+        }
+        tasks.forEach(task -> task.markStarted(ownerId));
+        return saveAll(tasks);
+    }
+
+    private List<Task> claimNewTasksByUpdateReturning(int maxCount, Collection<String> excludedTaskTypes,
+            String ownerId, Collection<Integer> partitions) {
+        var now = LocalDateTime.now();
+        var tasks = jdbcTemplate.query("UPDATE tasks SET status = ?, owner_id = ?, started_at = ?, heartbeat_at = ?, "
+                        + "attempts = attempts + 1, version = version + 1 "
+                        + "WHERE id IN (SELECT id FROM tasks WHERE status = ? AND rank_at <= ? AND due_at <= ? "
+                        + excludedTaskTypesClause(excludedTaskTypes) + partitionsClause(partitions)
+                        + "ORDER BY rank_at LIMIT ? FOR UPDATE SKIP LOCKED) "
+                        + "RETURNING " + TASK_COLUMNS,
+                ps -> {
+                    ps.setString(1, TaskStatus.STARTED.name());
+                    ps.setString(2, ownerId);
+                    setTimestamp(ps, 3, now);
+                    setTimestamp(ps, 4, now);
+                    ps.setString(5, TaskStatus.PENDING.name());
+                    setTimestamp(ps, 6, now);
+                    setTimestamp(ps, 7, now);
+                    int index = setInts(ps, setStrings(ps, 8, excludedTaskTypes), partitions);
+                    ps.setInt(index, maxCount);
+                },
+                this::mapTask);
+        tasks.sort(Comparator.comparing(Task::getRankAt));
+        return tasks;
+    }
+
+    private static String excludedTaskTypesClause(Collection<String> excludedTaskTypes) {
+        return excludedTaskTypes.isEmpty() ? "" : "AND task_type NOT IN (" + placeholders(excludedTaskTypes.size()) + ") ";
+    }
+
+    private static String partitionsClause(Collection<Integer> partitions) {
+        return partitions.isEmpty() ? "" : "AND partition_no IN (" + placeholders(partitions.size()) + ") ";
+    }
+
+    @Override
+    public Task save(Task task) {
+        if (task.hasId()) {
+            int updatedCount = jdbcTemplate.update(UPDATE_TASK_SQL, ps -> bindUpdateTask(ps, task));
+            ensureUpdated(task, updatedCount);
+            return task;
+        }
+        task.setId(allocateId());
+        jdbcTemplate.update(INSERT_TASK_SQL, ps -> bindInsertTask(ps, task));
+        return task;
+    }
+
+    @Override
+    public List<Task> saveAll(List<Task> tasks) {
+        var tasksHaveId = tasks.stream().filter(Task::hasId).collect(Collectors.toList());
+        var newTasks = tasks.stream().filter(task -> !task.hasId()).collect(Collectors.toList());
+        if (tasksHaveId.size() > 0) {
+            var updatedCounts = jdbcTemplate.batchUpdate(UPDATE_TASK_SQL, tasksHaveId, tasksHaveId.size(), this::bindUpdateTask);
+            for (int i = 0; i < tasksHaveId.size(); i++) {
+                ensureUpdated(tasksHaveId.get(i), updatedCounts[0][i]);
+            }
+        }
+        if (newTasks.size() > 0) {
+            newTasks.forEach(task -> task.setId(allocateId()));
+            jdbcTemplate.batchUpdate(INSERT_TASK_SQL, newTasks, INSERT_BATCH_SIZE, this::bindInsertTask);
+        }
+        return tasks;
+    }
+
+    @Override
+    public List<Task> insertUniqueTasks(List<Task> tasks) {
+        tasks.forEach(task -> task.setId(allocateId()));
+        return uniqueTasks.insert(tasks);
+    }
+
+    @Override
+    public int releaseDedupKeys(Collection<String> taskTypes, Collection<String> excludedTaskTypes,
+            LocalDateTime createdBefore) {
+        var sql = new StringBuilder("UPDATE tasks SET dedup_key = NULL WHERE dedup_key IS NOT NULL AND created_at < ?");
+        if (!taskTypes.isEmpty()) {
+            sql.append(" AND task_type IN (").append(placeholders(taskTypes.size())).append(")");
+        }
+        if (!excludedTaskTypes.isEmpty()) {
+            sql.append(" AND task_type NOT IN (").append(placeholders(excludedTaskTypes.size())).append(")");
+        }
+        return jdbcTemplate.update(sql.toString(), ps -> {
+            setTimestamp(ps, 1, createdBefore);
+            setStrings(ps, setStrings(ps, 2, taskTypes), excludedTaskTypes);
+        });
+    }
+
+    @Override
+    public void renewConsumerLease(String nodeId, LocalDateTime leaseExpiresAt) {
+        taskConsumers.renewLease(nodeId, leaseExpiresAt);
+    }
+
+    @Override
+    public List<String> findExpiredConsumers(LocalDateTime now) {
+        return taskConsumers.findExpired(now);
+    }
+
+    @Override
+    public int releaseTasksOfOwner(String ownerId, LocalDateTime now, String message, int maxEventsPerTask) {
+        JdbcTaskEvents.ParameterBinder ownedBy = (ps, index) -> {
+            ps.setString(index, ownerId);
+            ps.setString(index + 1, OWNED_STATUSES.get(0).name());
+            ps.setString(index + 2, OWNED_STATUSES.get(1).name());
+            return index + 3;
+        };
+        var condition = "owner_id = ? AND status IN (?, ?)";
+        taskEvents.addZombieEvents(condition, ownedBy, now, message, maxEventsPerTask);
+        // tasks out of attempts are likely to crash the node running them, they are not requeued
+        return jdbcTemplate.update("UPDATE tasks SET "
+                        + "ended_at = CASE WHEN attempts >= max_attempts THEN ? ELSE ended_at END, "
+                        + "status = CASE WHEN attempts >= max_attempts THEN ? ELSE ? END, "
+                        + "message = ?, owner_id = NULL, version = version + 1 "
+                        + "WHERE " + condition,
+                ps -> {
+                    setTimestamp(ps, 1, now);
+                    ps.setString(2, TaskStatus.DEAD_LETTER.name());
+                    ps.setString(3, TaskStatus.PENDING.name());
+                    ps.setString(4, message);
+                    ownedBy.bind(ps, 5);
+                });
+    }
+
+    @Override
+    public int deleteConsumer(String nodeId, LocalDateTime expiredBefore) {
+        return taskConsumers.delete(nodeId, expiredBefore);
+    }
+
+    @Override
+    public boolean tryAcquireLock(String name, String ownerId, LocalDateTime now, LocalDateTime leaseExpiresAt) {
+        return jdbcTemplate.update("UPDATE task_locks SET owner_id = ?, lease_expires_at = ? "
+                        + "WHERE name = ? AND (owner_id = ? OR owner_id IS NULL OR lease_expires_at < ?)",
+                ps -> {
+                    ps.setString(1, ownerId);
+                    setTimestamp(ps, 2, leaseExpiresAt);
+                    ps.setString(3, name);
+                    ps.setString(4, ownerId);
+                    setTimestamp(ps, 5, now);
+                }) > 0;
+    }
+
+    @Override
+    public int releaseTasks(Collection<Long> ids) {
+        int releasedCount = 0;
+        for (var chunk : chunks(ids)) {
+            // attempts is assigned before status, as mysql evaluates assignments from left to right
+            releasedCount += jdbcTemplate.update("UPDATE tasks SET "
+                            + "attempts = CASE WHEN status = ? THEN attempts - 1 ELSE attempts END, "
+                            + "status = ?, owner_id = NULL, version = version + 1 "
+                            + "WHERE id IN (" + placeholders(chunk.size()) + ") AND status IN (?, ?)",
+                    ps -> {
+                        ps.setString(1, TaskStatus.STARTED.name());
+                        ps.setString(2, TaskStatus.PENDING.name());
+                        setLongs(ps, 3, chunk);
+                        ps.setString(3 + chunk.size(), TaskStatus.STARTED.name());
+                        ps.setString(4 + chunk.size(), TaskStatus.RUNNING.name());
+                    });
+        }
+        return releasedCount;
+    }
+
+    @Override
+    public int cancelTask(long id, LocalDateTime cancelledAt) {
+        return jdbcTemplate.update("UPDATE tasks SET status = ?, ended_at = ?, version = version + 1 "
+                        + "WHERE id = ? AND status IN (?, ?, ?)",
+                ps -> {
+                    ps.setString(1, TaskStatus.CANCELLED.name());
+                    setTimestamp(ps, 2, cancelledAt);
+                    ps.setLong(3, id);
+                    ps.setString(4, TaskStatus.PENDING.name());
+                    ps.setString(5, TaskStatus.STARTED.name());
+                    ps.setString(6, TaskStatus.RUNNING.name());
+                });
+    }
+
+    @Override
+    public List<Long> findCancelledTaskIds(Collection<Long> ids) {
+        var cancelledIds = new ArrayList<Long>();
+        for (var chunk : chunks(ids)) {
+            cancelledIds.addAll(jdbcTemplate.query("SELECT id FROM tasks "
+                            + "WHERE status = ? AND id IN (" + placeholders(chunk.size()) + ")",
+                    ps -> {
+                        ps.setString(1, TaskStatus.CANCELLED.name());
+                        setLongs(ps, 2, chunk);
+                    },
+                    (rs, rowNum) -> rs.getLong("id")));
+        }
+        return cancelledIds;
+    }
+
+    @Override
+    public void touchNewTaskWatermark() {
+        jdbcTemplate.update("UPDATE task_signals SET version = version + 1 WHERE name = ?", NEW_TASKS_SIGNAL);
+    }
+
+    @Override
+    public long findNewTaskWatermark() {
+        return jdbcTemplate.queryForObject("SELECT version FROM task_signals WHERE name = ?", Long.class, NEW_TASKS_SIGNAL);
+    }
+
+    @Override
+    public int cleanZombieTasks(long heartbeatTimeout, int maxEventsPerTask) {
+        var now = LocalDateTime.now();
+        var minHeartbeatTime = now.minus(heartbeatTimeout, MILLIS);
+        var message = String.format("Clean zombie task at [%s].",
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").format(now));
+        JdbcTaskEvents.ParameterBinder zombies = (ps, index) -> {
+            ps.setString(index, TaskStatus.RUNNING.name());
+            ps.setString(index + 1, TaskStatus.STARTED.name());
+            setTimestamp(ps, index + 2, minHeartbeatTime);
+            return index + 3;
+        };
+        var condition = "status IN (?, ?) AND heartbeat_at < ? AND owner_id IS NULL";
+        taskEvents.addZombieEvents(condition, zombies, now, message, maxEventsPerTask);
+        // zombie tasks out of attempts are likely to crash the node running them, they are not requeued
+        int deadLetterCount = jdbcTemplate.update("UPDATE tasks SET status = ?, ended_at = ?, message = ?, "
+                        + "version = version + 1 WHERE " + condition + " AND attempts >= max_attempts",
+                ps -> {
+                    ps.setString(1, TaskStatus.DEAD_LETTER.name());
+                    setTimestamp(ps, 2, now);
+                    ps.setString(3, message);
+                    zombies.bind(ps, 4);
+                });
+        return deadLetterCount + jdbcTemplate.update("UPDATE tasks SET status = ?, message = ?, "
+                        + "version = version + 1 WHERE " + condition,
+                ps -> {
+                    ps.setString(1, TaskStatus.PENDING.name());
+                    ps.setString(2, message);
+                    zombies.bind(ps, 3);
+                });
+    }
+
+    @Override
+    public List<Long> findFinishedTaskIds(Collection<String> taskTypes, Collection<String> excludedTaskTypes,
+            LocalDateTime endedBefore, int maxCount) {
+        var sql = new StringBuilder("SELECT id FROM tasks WHERE status IN (?, ?, ?, ?) AND ended_at < ?");
+        if (!taskTypes.isEmpty()) {
+            sql.append(" AND task_type IN (").append(placeholders(taskTypes.size())).append(")");
+        }
+        if (!excludedTaskTypes.isEmpty()) {
+            sql.append(" AND task_type NOT IN (").append(placeholders(excludedTaskTypes.size())).append(")");
+        }
+        sql.append(" LIMIT ?");
+        return jdbcTemplate.query(sql.toString(), ps -> {
+            int index = 1;
+            ps.setString(index++, TaskStatus.SUCCEEDED.name());
+            ps.setString(index++, TaskStatus.FAILED.name());
+            ps.setString(index++, TaskStatus.DEAD_LETTER.name());
+            ps.setString(index++, TaskStatus.CANCELLED.name());
+            setTimestamp(ps, index++, endedBefore);
+            for (String taskType : taskTypes) {
+                ps.setString(index++, taskType);
+            }
+            for (String taskType : excludedTaskTypes) {
+                ps.setString(index++, taskType);
+            }
+            ps.setInt(index, maxCount);
+        }, (rs, rowNum) -> rs.getLong("id"));
+    }
+
+    @Override
+    public int archiveTasks(Collection<Long> ids) {
+        var archivedAt = LocalDateTime.now();
+        // ids already in the archive are skipped instead of failing the whole batch on the primary key
+        jdbcTemplate.update("INSERT INTO tasks_archive (" + TASK_COLUMNS + ", archived_at) "
+                        + "SELECT " + TASK_COLUMNS + ", ? FROM tasks WHERE id IN (" + placeholders(ids.size()) + ") "
+                        + "AND NOT EXISTS (SELECT 1 FROM tasks_archive a WHERE a.id = tasks.id)",
+                ps -> {
+                    setTimestamp(ps, 1, archivedAt);
+                    setLongs(ps, 2, ids);
+                });
+        return deleteTaskRows(ids);
+    }
+
+    @Override
+    public int deleteTasks(Collection<Long> ids) {
+        jdbcTemplate.update("DELETE FROM task_payloads WHERE task_id IN (" + placeholders(ids.size()) + ")",
+                ps -> setLongs(ps, 1, ids));
+        taskEvents.deleteEvents(ids);
+        return deleteTaskRows(ids);
+    }
+
+    private int deleteTaskRows(Collection<Long> ids) {
+        return jdbcTemplate.update("DELETE FROM tasks WHERE id IN (" + placeholders(ids.size()) + ")",
+                ps -> setLongs(ps, 1, ids));
+    }
+
+    @Override
+    public void savePayloads(List<TaskPayload> payloads) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO task_payloads (task_id, encoding, data) VALUES (?, ?, ?)",
+                payloads, INSERT_BATCH_SIZE, (ps, payload) -> {
+                    ps.setLong(1, payload.getTaskId());
+                    ps.setString(2, payload.getEncoding());
+                    ps.setBytes(3, payload.getData());
+                });
+    }
+
+    @Override
+    public List<TaskPayload> findPayloads(Collection<Long> taskIds) {
+        var payloads = new ArrayList<TaskPayload>();
+        for (var chunk : chunks(taskIds)) {
+            payloads.addAll(jdbcTemplate.query("SELECT task_id, encoding, data FROM task_payloads "
+                            + "WHERE task_id IN (" + placeholders(chunk.size()) + ")",
+                    ps -> setLongs(ps, 1, chunk),
+                    (rs, rowNum) -> new TaskPayload(rs.getLong("task_id"), rs.getString("encoding"), rs.getBytes("data"))));
+        }
+        return payloads;
+    }
+
+    @Override
+    public void addEvents(List<TaskEvent> events, int maxEventsPerTask) {
+        taskEvents.addEvents(events, maxEventsPerTask);
+    }
+
+    @Override
+    public List<TaskEvent> findEvents(long taskId) {
+        return taskEvents.findEvents(taskId);
+    }
+
+    private Task mapTask(ResultSet rs, int rowNum) throws SQLException {
+        var task = new Task();
+        task.setId(rs.getLong("id"));
+        task.setTaskType(rs.getString("task_type"));
+        task.setTaskArg(rs.getString("task_arg"));
+        task.setStatus(TaskStatus.valueOf(rs.getString("status")));
+        task.setMessage(rs.getString("message"));
+        task.setVersion(rs.getInt("version"));
+        task.setCreatedAt(JdbcTimestamps.get(rs, "created_at", jdbcTimeZone));
+        task.setDueAt(JdbcTimestamps.get(rs, "due_at", jdbcTimeZone));
+        task.setPriority(rs.getInt("priority"));
+        task.setRankAt(JdbcTimestamps.get(rs, "rank_at", jdbcTimeZone));
+        task.setAttempts(rs.getInt("attempts"));
+        task.setMaxAttempts(rs.getInt("max_attempts"));
+        task.setOwnerId(rs.getString("owner_id"));
+        task.setStartedAt(JdbcTimestamps.get(rs, "started_at", jdbcTimeZone));
+        task.setRunAt(JdbcTimestamps.get(rs, "run_at", jdbcTimeZone));
+        task.setEndedAt(JdbcTimestamps.get(rs, "ended_at", jdbcTimeZone));
+        task.setHeartbeatAt(JdbcTimestamps.get(rs, "heartbeat_at", jdbcTimeZone));
+        task.setPartitionNo(rs.getInt("partition_no"));
+        task.setDedupKey(rs.getString("dedup_key"));
+        return task;
+    }
+
+    private void bindInsertTask(PreparedStatement ps, Task task) throws SQLException {
+        ps.setLong(1, task.getId());
+        ps.setString(2, task.getTaskType());
+        ps.setString(3, task.getTaskArg());
+        ps.setString(4, task.getStatus().name());
+        ps.setString(5, task.getMessage());
+        ps.setInt(6, task.getVersion());
+        setTimestamp(ps, 7, task.getCreatedAt());
+        setTimestamp(ps, 8, task.getDueAt());
+        ps.setInt(9, task.getPriority());
+        setTimestamp(ps, 10, task.getRankAt());
+        ps.setInt(11, task.getAttempts());
+        ps.setInt(12, task.getMaxAttempts());
+        ps.setString(13, task.getOwnerId());
+        setTimestamp(ps, 14, task.getStartedAt());
+        setTimestamp(ps, 15, task.getRunAt());
+        setTimestamp(ps, 16, task.getEndedAt());
+        setTimestamp(ps, 17, task.getHeartbeatAt());
+        ps.setInt(18, task.getPartitionNo());
+        ps.setString(19, task.getDedupKey());
+    }
+
+    private void bindUpdateTask(PreparedStatement ps, Task task) throws SQLException {
+        ps.setString(1, task.getStatus().name());
+        ps.setString(2, task.getMessage());
+        ps.setInt(3, task.getVersion());
+        setTimestamp(ps, 4, task.getDueAt());
+        setTimestamp(ps, 5, task.getRankAt());
+        ps.setInt(6, task.getAttempts());
+        ps.setInt(7, task.getMaxAttempts());
+        ps.setString(8, task.getOwnerId());
+        setTimestamp(ps, 9, task.getStartedAt());
+        setTimestamp(ps, 10, task.getRunAt());
+        setTimestamp(ps, 11, task.getEndedAt());
+        setTimestamp(ps, 12, task.getHeartbeatAt());
+        ps.setLong(13, task.getId());
+        ps.setInt(14, task.getVersion());
+    }
+
+    private void ensureUpdated(Task task, int updatedCount) {
+        if (updatedCount == 0) {
+            throw new RuntimeException(String.format("task %s is not found or found a bigger version >= %s in db, "
+                    + "will not do saving.", task.getId(), task.getVersion()));
+        }
+    }
+
+    private void setTimestamp(PreparedStatement ps, int index, LocalDateTime value) throws SQLException {
+        JdbcTimestamps.set(ps, index, value, jdbcTimeZone);
+    }
+
+    private static void setLongs(PreparedStatement ps, int fromIndex, Collection<Long> values) throws SQLException {
+        int index = fromIndex;
+        for (Long value : values) {
+            ps.setLong(index++, value);
+        }
+    }
+
+    // returns the next parameter index
+    private static int setStrings(PreparedStatement ps, int fromIndex, Collection<String> values) throws SQLException {
+        int index = fromIndex;
+        for (String value : values) {
+            ps.setString(index++, value);
+        }
+        return index;
+    }
+
+    private static int setInts(PreparedStatement ps, int fromIndex, Collection<Integer> values) throws SQLException {
+        int index = fromIndex;
+        for (int value : values) {
+            ps.setInt(index++, value);
+        }
+        return index;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    private static <T> List<List<T>> chunks(Collection<T> values) {
+        var valueList = new ArrayList<>(values);
+        var chunks = new ArrayList<List<T>>();
+        for (int from = 0; from < valueList.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+            chunks.add(valueList.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, valueList.size())));
+        }
+        return chunks;
+    }
+
+    private synchronized long allocateId() {
+        if (nextId > maxAllocatedId) {
+            var sequenceValue = isMySql()
+                    ? nextTableSequenceValue()
+                    : jdbcTemplate.queryForObject(isPostgreSql()
+                            ? "SELECT nextval('tasks_seq')"
+                            : "SELECT NEXT VALUE FOR tasks_seq", Long.class);
+            maxAllocatedId = sequenceValue;
+            nextId = Math.max(sequenceValue - ID_ALLOCATION_SIZE + 1, 1);
+        }
+        return nextId++;
+    }
+
+    // mysql has no sequences, tasks_seq is a table there the way hibernate emulates it. it is bumped on a connection
+    // of its own, so that its row is not locked until the enqueue transaction commits
+    private long nextTableSequenceValue() {
+        var sql = "UPDATE tasks_seq SET next_val = LAST_INSERT_ID(next_val) + " + ID_ALLOCATION_SIZE;
+        try (var connection = jdbcTemplate.getDataSource().getConnection();
+                var statement = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            statement.executeUpdate(sql);
+            try (var rs = statement.executeQuery("SELECT LAST_INSERT_ID()")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            throw jdbcTemplate.getExceptionTranslator().translate("allocate task ids", sql, e);
+        }
+    }
+
+    private boolean isPostgreSql() {
+        return "PostgreSQL".equals(databaseProductName());
+    }
+
+    private boolean isMySql() {
+        return "MySQL".equals(databaseProductName());
+    }
+
+    private String databaseProductName() {
+        if (databaseProductName == null) {
+            databaseProductName = jdbcTemplate.execute(
+                    (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        }
+        return databaseProductName;
+    }
+}
@@ -0,0 +1,35 @@
+package com.brightliao.taskqueue;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+// binds and reads timestamps the way hibernate does with hibernate.jdbc.time_zone,
+// so that rows written by plain jdbc and by the entities stay interchangeable
+public final class JdbcTimestamps {
+
+    private JdbcTimestamps() {
+    }
+
+    public static void set(PreparedStatement ps, int index, LocalDateTime value, TimeZone jdbcTimeZone) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+        } else if (jdbcTimeZone == null) {
+            ps.setTimestamp(index, Timestamp.valueOf(value));
+        } else {
+            ps.setTimestamp(index, Timestamp.valueOf(value), Calendar.getInstance(jdbcTimeZone));
+        }
+    }
+
+    public static LocalDateTime get(ResultSet rs, String column, TimeZone jdbcTimeZone) throws SQLException {
+        var timestamp = jdbcTimeZone == null
+                ? rs.getTimestamp(column)
+                : rs.getTimestamp(column, Calendar.getInstance(jdbcTimeZone));
+        return timestamp == null ? null : timestamp.toLocalDateTime();
+    }
+}
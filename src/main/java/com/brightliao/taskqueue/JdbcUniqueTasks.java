@@ -0,0 +1,135 @@
+package com.brightliao.taskqueue;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.stream.Collectors;
+
+// inserts of tasks with dedup keys shared by the task repositories. a task whose key is taken is skipped by the
+// insert itself, so that adding unique tasks takes one statement per task and does not fail on a concurrent producer
+class JdbcUniqueTasks {
+
+    private static final String TASK_COLUMNS = "id, task_type, task_arg, status, message, version, "
+            + "created_at, due_at, priority, rank_at, attempts, max_attempts, owner_id, "
+            + "started_at, run_at, ended_at, heartbeat_at, partition_no, dedup_key";
+    private static final String TASK_VALUES = "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?";
+    private static final String POSTGRESQL_INSERT_SQL = "INSERT INTO tasks (" + TASK_COLUMNS + ") "
+            + "VALUES (" + TASK_VALUES + ") ON CONFLICT (task_type, dedup_key) DO NOTHING";
+    // ignore downgrades other errors to warnings too, only a taken key is expected as the values come from a valid task
+    private static final String MYSQL_INSERT_SQL = "INSERT IGNORE INTO tasks (" + TASK_COLUMNS + ") "
+            + "VALUES (" + TASK_VALUES + ")";
+    // a key taken by a transaction not committed yet still fails the insert, as the check does not see the key
+    private static final String INSERT_SQL = "INSERT INTO tasks (" + TASK_COLUMNS + ") "
+            + "SELECT " + TASK_VALUES + " FROM DUAL WHERE NOT EXISTS "
+            + "(SELECT 1 FROM tasks WHERE task_type = ? AND dedup_key = ?)";
+    private static final int INSERT_BATCH_SIZE = 50;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TimeZone jdbcTimeZone;
+    private volatile String insertSql;
+
+    JdbcUniqueTasks(JdbcTemplate jdbcTemplate, TimeZone jdbcTimeZone) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.jdbcTimeZone = jdbcTimeZone;
+    }
+
+    // the tasks should have their ids allocated, returns the ones inserted
+    List<Task> insert(List<Task> tasks) {
+        if (tasks.isEmpty()) {
+            return List.of();
+        }
+        var sql = insertSql();
+        var insertedCounts = Arrays.stream(jdbcTemplate.batchUpdate(sql, tasks, INSERT_BATCH_SIZE, (ps, task) -> {
+            bindTask(ps, task);
+            if (sql.equals(INSERT_SQL)) {
+                ps.setString(20, task.getTaskType());
+                ps.setString(21, task.getDedupKey());
+            }
+        })).flatMapToInt(Arrays::stream).toArray();
+        if (Arrays.stream(insertedCounts).anyMatch(count -> count == Statement.SUCCESS_NO_INFO)) {
+            // drivers rewriting batches into multi-row inserts do not tell which rows were inserted
+            return findInserted(tasks);
+        }
+        var inserted = new ArrayList<Task>();
+        for (int i = 0; i < tasks.size(); i++) {
+            if (insertedCounts[i] > 0) {
+                inserted.add(tasks.get(i));
+            }
+        }
+        return inserted;
+    }
+
+    private List<Task> findInserted(List<Task> tasks) {
+        var insertedIds = new HashSet<Long>();
+        for (int from = 0; from < tasks.size(); from += INSERT_BATCH_SIZE) {
+            var chunk = tasks.subList(from, Math.min(from + INSERT_BATCH_SIZE, tasks.size()));
+            insertedIds.addAll(jdbcTemplate.query("SELECT id FROM tasks WHERE id IN ("
+                            + chunk.stream().map(task -> "?").collect(Collectors.joining(", ")) + ")",
+                    ps -> {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            ps.setLong(i + 1, chunk.get(i).getId());
+                        }
+                    },
+                    (rs, rowNum) -> rs.getLong("id")));
+        }
+        return tasks.stream().filter(task -> insertedIds.contains(task.getId())).collect(Collectors.toList());
+    }
+
+    private void bindTask(PreparedStatement ps, Task task) throws SQLException {
+        ps.setLong(1, task.getId());
+        ps.setString(2, task.getTaskType());
+        ps.setString(3, task.getTaskArg());
+        ps.setString(4, task.getStatus().name());
+        ps.setString(5, task.getMessage());
+        ps.setInt(6, task.getVersion());
+        JdbcTimestamps.set(ps, 7, task.getCreatedAt(), jdbcTimeZone);
+        JdbcTimestamps.set(ps, 8, task.getDueAt(), jdbcTimeZone);
+        ps.setInt(9, task.getPriority());
+        JdbcTimestamps.set(ps, 10, task.getRankAt(), jdbcTimeZone);
+        ps.setInt(11, task.getAttempts());
+        ps.setInt(12, task.getMaxAttempts());
+        ps.setString(13, task.getOwnerId());
+        JdbcTimestamps.set(ps, 14, task.getStartedAt(), jdbcTimeZone);
+        JdbcTimestamps.set(ps, 15, task.getRunAt(), jdbcTimeZone);
+        JdbcTimestamps.set(ps, 16, task.getEndedAt(), jdbcTimeZone);
+        JdbcTimestamps.set(ps, 17, task.getHeartbeatAt(), jdbcTimeZone);
+        ps.setInt(18, task.getPartitionNo());
+        ps.setString(19, task.getDedupKey());
+    }
+
+    // h2 takes the insert ignore of mysql in the mysql compatible modes only
+    private String insertSql() {
+        if (insertSql == null) {
+            insertSql = jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+                var databaseProductName = connection.getMetaData().getDatabaseProductName();
+                if ("PostgreSQL".equals(databaseProductName)) {
+                    return POSTGRESQL_INSERT_SQL;
+                }
+                var isMySql = "MySQL".equals(databaseProductName)
+                        || "H2".equals(databaseProductName) && isMySqlMode(connection);
+                if (isMySql) {
+                    return MYSQL_INSERT_SQL;
+                }
+                return INSERT_SQL;
+            });
+        }
+        return insertSql;
+    }
+
+    private static boolean isMySqlMode(Connection connection) throws SQLException {
+        try (var statement = connection.createStatement();
+                var rs = statement.executeQuery(
+                        "SELECT SETTING_VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE SETTING_NAME = 'MODE'")) {
+            return rs.next() && ("MySQL".equals(rs.getString(1)) || "MariaDB".equals(rs.getString(1)));
+        }
+    }
+}
@@ -5,58 +5,107 @@ import static java.time.temporal.ChronoUnit.MILLIS;
 import com.brightliao.taskqueue.Task.TaskStatus;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
+import org.hibernate.LockOptions;
+import org.hibernate.dialect.PostgreSQL95Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.mapstruct.Mapper;
+import org.mapstruct.Mapping;
 import org.mapstruct.MappingConstants;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityNotFoundException;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.PersistenceException;
 import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
 
 @RequiredArgsConstructor
 @Service
+@ConditionalOnProperty(name = "task.repository", havingValue = "jpa", matchIfMissing = true)
 public class JpaTaskRepository implements TaskRepository {
 
+    private static final String UPDATE_TASK_SQL = "UPDATE tasks SET "
+            + "status = ?, message = ?, version = ?, due_at = ?, rank_at = ?, attempts = ?, max_attempts = ?, "
+            + "owner_id = ?, started_at = ?, run_at = ?, ended_at = ?, heartbeat_at = ? "
+            + "WHERE id = ? AND version < ?";
+    private static final List<TaskStatus> RUNNING_STATUSES = List.of(TaskStatus.RUNNING, TaskStatus.STARTED);
+    private static final List<TaskStatus> FINISHED_STATUSES = List.of(TaskStatus.SUCCEEDED, TaskStatus.FAILED,
+            TaskStatus.DEAD_LETTER, TaskStatus.CANCELLED);
+    private static final List<TaskStatus> CANCELLABLE_STATUSES = List.of(TaskStatus.PENDING, TaskStatus.STARTED,
+            TaskStatus.RUNNING);
+    private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+    private static final String NEW_TASKS_SIGNAL = "new_tasks";
+    private static final HibernateJpaDialect JPA_DIALECT = new HibernateJpaDialect();
+
     @Autowired
     private final TaskEntityMapper entityMapper;
     @Autowired
     private final InnerJpaTaskRepository taskRepository;
+    @Autowired
+    private final JdbcTemplate jdbcTemplate;
 
     private EntityManager entityManager;
+    private volatile Boolean supportsUpdateReturning;
+    private volatile JdbcTaskEvents taskEvents;
+    private volatile JdbcTaskConsumers taskConsumers;
+    private volatile JdbcUniqueTasks uniqueTasks;
 
     @PersistenceContext
     public final void setEntityManager(EntityManager entityManager) {
         this.entityManager = entityManager;
     }
 
-    @Override
-    public List<Task> findNewTasks(int maxCount) {
-        var query = entityManager.createQuery(
-                "from JpaTaskRepository$TaskEntity "
-                        + "where status = :status "
-                        + "order by createdAt asc",
-                TaskEntity.class);
+    private List<Task> findNewTasks(int maxCount, Collection<String> excludedTaskTypes, Collection<Integer> partitions) {
+        var jpql = new StringBuilder("from JpaTaskRepository$TaskEntity "
+                + "where status = :status and rankAt <= :now and dueAt <= :now");
+        if (!excludedTaskTypes.isEmpty()) {
+            jpql.append(" and taskType not in :excludedTaskTypes");
+        }
+        if (!partitions.isEmpty()) {
+            jpql.append(" and partitionNo in :partitions");
+        }
+        // status is fixed, ordering by it too lets h2 pick idx_tasks_status_rank_at over the equally selective
+        // idx_tasks_status_due_at and read the tasks in index order
+        jpql.append(" order by status, rankAt asc");
+        var query = entityManager.createQuery(jpql.toString(), TaskEntity.class);
         query.setParameter("status", TaskStatus.PENDING);
+        query.setParameter("now", LocalDateTime.now());
+        if (!excludedTaskTypes.isEmpty()) {
+            query.setParameter("excludedTaskTypes", excludedTaskTypes);
+        }
+        if (!partitions.isEmpty()) {
+            query.setParameter("partitions", partitions);
+        }
         query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        // rendered as "for update skip locked" by dialects supporting it, and as a plain "for update" by others like H2
+        query.setHint("javax.persistence.lock.timeout", LockOptions.SKIP_LOCKED);
         query.setMaxResults(maxCount);
         return query.getResultList().stream()
                 .map(entityMapper::toTask)
@@ -64,37 +113,381 @@ public class JpaTaskRepository implements TaskRepository {
     }
 
     @Override
-    public Task save(Task task) {
-        if (task.getId() != null) {
-            var taskInDb = taskRepository.findById(task.getId()).orElseThrow(EntityNotFoundException::new);
-            ensureVersionIsSmallerInDb(task, taskInDb);
+    public List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId) {
+        return claimNewTasks(maxCount, excludedTaskTypes, ownerId, List.of());
+    }
+
+    @Override
+    public List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId,
+            Collection<Integer> partitions) {
+        if (supportsUpdateReturning()) {
+            return claimNewTasksByUpdateReturning(maxCount, excludedTaskTypes, ownerId, partitions);
         }
-        return entityMapper.toTask(taskRepository.save(entityMapper.fromTask(task)));
+        var tasks = findNewTasks(maxCount, excludedTaskTypes, partitions);
+        if (tasks.isEmpty()) {
+            return tasks;
+        }
+        tasks.forEach(task -> task.markStarted(ownerId));
+        return saveAll(tasks);
+    }
+
+    private List<Task> claimNewTasksByUpdateReturning(int maxCount, Collection<String> excludedTaskTypes,
+            String ownerId, Collection<Integer> partitions) {
+        var now = LocalDateTime.now();
+        var excludedTaskTypesClause = excludedTaskTypes.isEmpty() ? "" : "AND task_type NOT IN (:excludedTaskTypes) ";
+        var partitionsClause = partitions.isEmpty() ? "" : "AND partition_no IN (:partitions) ";
+        var query = entityManager.createNativeQuery(
+                        "UPDATE tasks SET status = :startedStatus, owner_id = :ownerId, started_at = :now, "
+                                + "heartbeat_at = :now, "
+                                + "attempts = attempts + 1, version = version + 1 "
+                                + "WHERE id IN (SELECT id FROM tasks "
+                                + "WHERE status = :pendingStatus AND rank_at <= :now AND due_at <= :now "
+                                + excludedTaskTypesClause + partitionsClause
+                                + "ORDER BY rank_at LIMIT :maxCount FOR UPDATE SKIP LOCKED) "
+                                + "RETURNING *",
+                        TaskEntity.class)
+                .setParameter("startedStatus", TaskStatus.STARTED.name())
+                .setParameter("pendingStatus", TaskStatus.PENDING.name())
+                .setParameter("ownerId", ownerId)
+                .setParameter("now", now)
+                .setParameter("maxCount", maxCount);
+        if (!excludedTaskTypes.isEmpty()) {
+            query.setParameter("excludedTaskTypes", excludedTaskTypes);
+        }
+        if (!partitions.isEmpty()) {
+            query.setParameter("partitions", partitions);
+        }
+        @SuppressWarnings("unchecked")
+        List<TaskEntity> claimed = query.getResultList();
+        return claimed.stream()
+                .sorted(Comparator.comparing(TaskEntity::getRankAt))
+                .map(entityMapper::toTask)
+                .collect(Collectors.toList());
+    }
+
+    private boolean supportsUpdateReturning() {
+        if (supportsUpdateReturning == null) {
+            supportsUpdateReturning = sessionFactory().getJdbcServices().getDialect() instanceof PostgreSQL95Dialect;
+        }
+        return supportsUpdateReturning;
+    }
+
+    private SessionFactoryImplementor sessionFactory() {
+        return entityManager.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class);
+    }
+
+    private JdbcTaskEvents taskEvents() {
+        if (taskEvents == null) {
+            taskEvents = new JdbcTaskEvents(jdbcTemplate, sessionFactory().getSessionFactoryOptions().getJdbcTimeZone());
+        }
+        return taskEvents;
     }
 
-    private void ensureVersionIsSmallerInDb(Task task, TaskEntity taskInDb) {
-        if (taskInDb.getVersion() >= task.getVersion()) {
-            throw new RuntimeException(String.format("found a bigger version %s >= %s in db, will not do saving.",
-                    taskInDb.getVersion(), task.getVersion()));
+    private JdbcTaskConsumers taskConsumers() {
+        if (taskConsumers == null) {
+            taskConsumers = new JdbcTaskConsumers(jdbcTemplate,
+                    sessionFactory().getSessionFactoryOptions().getJdbcTimeZone());
+        }
+        return taskConsumers;
+    }
+
+    private JdbcUniqueTasks uniqueTasks() {
+        if (uniqueTasks == null) {
+            uniqueTasks = new JdbcUniqueTasks(jdbcTemplate, sessionFactory().getSessionFactoryOptions().getJdbcTimeZone());
+        }
+        return uniqueTasks;
+    }
+
+    @Override
+    public LocalDateTime findNextDueAt(Collection<String> excludedTaskTypes) {
+        var jpql = new StringBuilder("select min(dueAt) from JpaTaskRepository$TaskEntity where status = :status");
+        if (!excludedTaskTypes.isEmpty()) {
+            jpql.append(" and taskType not in :excludedTaskTypes");
+        }
+        var query = entityManager.createQuery(jpql.toString(), LocalDateTime.class);
+        query.setParameter("status", TaskStatus.PENDING);
+        if (!excludedTaskTypes.isEmpty()) {
+            query.setParameter("excludedTaskTypes", excludedTaskTypes);
         }
+        return query.getSingleResult();
+    }
+
+    @Override
+    public Task save(Task task) {
+        if (task.hasId()) {
+            int updatedCount = jdbcTemplate.update(UPDATE_TASK_SQL, ps -> bindUpdateTask(ps, task));
+            ensureUpdated(task, updatedCount);
+            return task;
+        }
+        return entityMapper.toTask(taskRepository.save(entityMapper.fromTask(task)));
     }
 
     @Override
     public List<Task> saveAll(List<Task> tasks) {
-        var tasksHaveId = tasks.stream().filter(Task::hasId).collect(Collectors.toMap(Task::getId, Function.identity()));
+        var tasksHaveId = tasks.stream().filter(Task::hasId).collect(Collectors.toList());
         if (tasksHaveId.size() > 0) {
-            taskRepository.findAllById(tasksHaveId.keySet())
-                    .forEach(taskInDb -> ensureVersionIsSmallerInDb(tasksHaveId.get(taskInDb.getId()), taskInDb));
+            var updatedCounts = jdbcTemplate.batchUpdate(UPDATE_TASK_SQL, tasksHaveId, tasksHaveId.size(), this::bindUpdateTask);
+            for (int i = 0; i < tasksHaveId.size(); i++) {
+                ensureUpdated(tasksHaveId.get(i), updatedCounts[0][i]);
+            }
         }
-        final List<TaskEntity> taskEntities = tasks.stream().map(entityMapper::fromTask).collect(Collectors.toList());
-        return taskRepository.saveAll(taskEntities).stream()
-                .map(entityMapper::toTask)
+        var insertedTasks = insertAll(tasks.stream().filter(task -> !task.hasId()).collect(Collectors.toList())).iterator();
+        return tasks.stream()
+                .map(task -> task.hasId() ? task : insertedTasks.next())
                 .collect(Collectors.toList());
     }
 
+    // ids come from a pooled sequence, so hibernate can send the inserts in jdbc batches. the inserts are flushed
+    // here, so that a taken dedup key fails as a DataIntegrityViolationException like in the other repositories
+    private List<Task> insertAll(List<Task> tasks) {
+        if (tasks.isEmpty()) {
+            return List.of();
+        }
+        var batchSize = Math.max(sessionFactory().getSessionFactoryOptions().getJdbcBatchSize(), 1);
+        var insertedTasks = new ArrayList<Task>(tasks.size());
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                var taskEntity = entityMapper.fromTask(tasks.get(i));
+                entityManager.persist(taskEntity);
+                insertedTasks.add(entityMapper.toTask(taskEntity));
+                if ((i + 1) % batchSize == 0 || i == tasks.size() - 1) {
+                    entityManager.flush();
+                    entityManager.clear();
+                }
+            }
+        } catch (PersistenceException e) {
+            var translated = JPA_DIALECT.translateExceptionIfPossible(e);
+            throw translated != null ? translated : e;
+        }
+        return insertedTasks;
+    }
+
+    private void bindUpdateTask(PreparedStatement ps, Task task) throws SQLException {
+        ps.setString(1, task.getStatus().name());
+        ps.setString(2, task.getMessage());
+        ps.setInt(3, task.getVersion());
+        setTimestamp(ps, 4, task.getDueAt());
+        setTimestamp(ps, 5, task.getRankAt());
+        ps.setInt(6, task.getAttempts());
+        ps.setInt(7, task.getMaxAttempts());
+        ps.setString(8, task.getOwnerId());
+        setTimestamp(ps, 9, task.getStartedAt());
+        setTimestamp(ps, 10, task.getRunAt());
+        setTimestamp(ps, 11, task.getEndedAt());
+        setTimestamp(ps, 12, task.getHeartbeatAt());
+        ps.setLong(13, task.getId());
+        ps.setInt(14, task.getVersion());
+    }
+
+    private void setTimestamp(PreparedStatement ps, int index, LocalDateTime value) throws SQLException {
+        JdbcTimestamps.set(ps, index, value, sessionFactory().getSessionFactoryOptions().getJdbcTimeZone());
+    }
+
+    private void ensureUpdated(Task task, int updatedCount) {
+        if (updatedCount == 0) {
+            throw new RuntimeException(String.format("task %s is not found or found a bigger version >= %s in db, "
+                    + "will not do saving.", task.getId(), task.getVersion()));
+        }
+    }
+
+    @Override
+    public void renewConsumerLease(String nodeId, LocalDateTime leaseExpiresAt) {
+        taskConsumers().renewLease(nodeId, leaseExpiresAt);
+    }
+
+    @Override
+    public List<String> findExpiredConsumers(LocalDateTime now) {
+        return taskConsumers().findExpired(now);
+    }
+
+    @Override
+    public int releaseTasksOfOwner(String ownerId, LocalDateTime now, String message, int maxEventsPerTask) {
+        taskEvents().addZombieEvents("owner_id = ? AND status IN (?, ?)", (ps, index) -> {
+            ps.setString(index, ownerId);
+            ps.setString(index + 1, TaskStatus.STARTED.name());
+            ps.setString(index + 2, TaskStatus.RUNNING.name());
+            return index + 3;
+        }, now, message, maxEventsPerTask);
+        return taskRepository.releaseTasksOfOwner(ownerId, now, message,
+                TaskStatus.PENDING.name(), TaskStatus.DEAD_LETTER.name(),
+                TaskStatus.STARTED.name(), TaskStatus.RUNNING.name());
+    }
+
+    @Override
+    public int deleteConsumer(String nodeId, LocalDateTime expiredBefore) {
+        return taskConsumers().delete(nodeId, expiredBefore);
+    }
+
+    @Override
+    public boolean tryAcquireLock(String name, String ownerId, LocalDateTime now, LocalDateTime leaseExpiresAt) {
+        return jdbcTemplate.update("UPDATE task_locks SET owner_id = ?, lease_expires_at = ? "
+                        + "WHERE name = ? AND (owner_id = ? OR owner_id IS NULL OR lease_expires_at < ?)",
+                ps -> {
+                    ps.setString(1, ownerId);
+                    setTimestamp(ps, 2, leaseExpiresAt);
+                    ps.setString(3, name);
+                    ps.setString(4, ownerId);
+                    setTimestamp(ps, 5, now);
+                }) > 0;
+    }
+
+    @Override
+    public int releaseTasks(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return taskRepository.releaseTasks(ids, TaskStatus.PENDING.name(), TaskStatus.STARTED.name(),
+                TaskStatus.RUNNING.name());
+    }
+
+    @Override
+    public int cancelTask(long id, LocalDateTime cancelledAt) {
+        return taskRepository.cancelTask(id, cancelledAt, CANCELLABLE_STATUSES, TaskStatus.CANCELLED);
+    }
+
+    // the ids come from the generator of the entity, so they stay in step with the ids of the persisted tasks
+    @Override
+    public List<Task> insertUniqueTasks(List<Task> tasks) {
+        var session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        var idGenerator = sessionFactory().getIdentifierGenerator(TaskEntity.class.getName());
+        tasks.forEach(task -> task.setId((Long) idGenerator.generate(session, null)));
+        return uniqueTasks().insert(tasks);
+    }
+
+    @Override
+    public int releaseDedupKeys(Collection<String> taskTypes, Collection<String> excludedTaskTypes,
+            LocalDateTime createdBefore) {
+        var jpql = new StringBuilder("update JpaTaskRepository$TaskEntity set dedupKey = null "
+                + "where dedupKey is not null and createdAt < :createdBefore");
+        if (!taskTypes.isEmpty()) {
+            jpql.append(" and taskType in :taskTypes");
+        }
+        if (!excludedTaskTypes.isEmpty()) {
+            jpql.append(" and taskType not in :excludedTaskTypes");
+        }
+        var query = entityManager.createQuery(jpql.toString());
+        query.setParameter("createdBefore", createdBefore);
+        if (!taskTypes.isEmpty()) {
+            query.setParameter("taskTypes", taskTypes);
+        }
+        if (!excludedTaskTypes.isEmpty()) {
+            query.setParameter("excludedTaskTypes", excludedTaskTypes);
+        }
+        return query.executeUpdate();
+    }
+
+    @Override
+    public List<Long> findCancelledTaskIds(Collection<Long> ids) {
+        var idList = new ArrayList<>(ids);
+        var cancelledIds = new ArrayList<Long>();
+        for (int from = 0; from < idList.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+            var chunk = idList.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, idList.size()));
+            cancelledIds.addAll(taskRepository.findIdsByStatus(chunk, TaskStatus.CANCELLED));
+        }
+        return cancelledIds;
+    }
+
+    @Override
+    public List<Long> findFinishedTaskIds(Collection<String> taskTypes, Collection<String> excludedTaskTypes,
+            LocalDateTime endedBefore, int maxCount) {
+        var jpql = new StringBuilder("select id from JpaTaskRepository$TaskEntity "
+                + "where status in :finishedStatus and endedAt < :endedBefore");
+        if (!taskTypes.isEmpty()) {
+            jpql.append(" and taskType in :taskTypes");
+        }
+        if (!excludedTaskTypes.isEmpty()) {
+            jpql.append(" and taskType not in :excludedTaskTypes");
+        }
+        var query = entityManager.createQuery(jpql.toString(), Long.class);
+        query.setParameter("finishedStatus", FINISHED_STATUSES);
+        query.setParameter("endedBefore", endedBefore);
+        if (!taskTypes.isEmpty()) {
+            query.setParameter("taskTypes", taskTypes);
+        }
+        if (!excludedTaskTypes.isEmpty()) {
+            query.setParameter("excludedTaskTypes", excludedTaskTypes);
+        }
+        query.setMaxResults(maxCount);
+        return query.getResultList();
+    }
+
     @Override
-    public int cleanZombieTasks(long heartbeatTimeout) {
-        return taskRepository.cleanZombieTasks(heartbeatTimeout);
+    public int archiveTasks(Collection<Long> ids) {
+        taskRepository.copyToArchive(ids, LocalDateTime.now());
+        return taskRepository.deleteTasks(ids);
+    }
+
+    @Override
+    public int deleteTasks(Collection<Long> ids) {
+        taskRepository.deletePayloads(ids);
+        taskRepository.deleteEvents(ids);
+        return taskRepository.deleteTasks(ids);
+    }
+
+    @Override
+    public void savePayloads(List<TaskPayload> payloads) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO task_payloads (task_id, encoding, data) VALUES (?, ?, ?)",
+                payloads, payloads.size(), (ps, payload) -> {
+                    ps.setLong(1, payload.getTaskId());
+                    ps.setString(2, payload.getEncoding());
+                    ps.setBytes(3, payload.getData());
+                });
+    }
+
+    @Override
+    public List<TaskPayload> findPayloads(Collection<Long> taskIds) {
+        var idList = new ArrayList<>(taskIds);
+        var payloads = new ArrayList<TaskPayload>();
+        for (int from = 0; from < idList.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+            var chunk = idList.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, idList.size()));
+            payloads.addAll(jdbcTemplate.query("SELECT task_id, encoding, data FROM task_payloads "
+                            + "WHERE task_id IN (" + chunk.stream().map(id -> "?").collect(Collectors.joining(", ")) + ")",
+                    (rs, rowNum) -> new TaskPayload(rs.getLong("task_id"), rs.getString("encoding"), rs.getBytes("data")),
+                    chunk.toArray()));
+        }
+        return payloads;
+    }
+
+    @Override
+    public void touchNewTaskWatermark() {
+        jdbcTemplate.update("UPDATE task_signals SET version = version + 1 WHERE name = ?", NEW_TASKS_SIGNAL);
+    }
+
+    @Override
+    public long findNewTaskWatermark() {
+        return jdbcTemplate.queryForObject("SELECT version FROM task_signals WHERE name = ?", Long.class, NEW_TASKS_SIGNAL);
+    }
+
+    @Override
+    public void addEvents(List<TaskEvent> events, int maxEventsPerTask) {
+        taskEvents().addEvents(events, maxEventsPerTask);
+    }
+
+    @Override
+    public List<TaskEvent> findEvents(long taskId) {
+        return taskEvents().findEvents(taskId);
+    }
+
+    // zombie tasks out of attempts are likely to crash the node running them, they are not requeued
+    @Override
+    public int cleanZombieTasks(long heartbeatTimeout, int maxEventsPerTask) {
+        var now = LocalDateTime.now();
+        var minHeartbeatTime = now.minus(heartbeatTimeout, MILLIS);
+        var message = String.format("Clean zombie task at [%s].",
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").format(now));
+        taskEvents().addZombieEvents("status IN (?, ?) AND heartbeat_at < ? AND owner_id IS NULL", (ps, index) -> {
+            ps.setString(index, TaskStatus.RUNNING.name());
+            ps.setString(index + 1, TaskStatus.STARTED.name());
+            setTimestamp(ps, index + 2, minHeartbeatTime);
+            return index + 3;
+        }, now, message, maxEventsPerTask);
+        int deadLetterCount = taskRepository.deadLetterZombieTasks(minHeartbeatTime, now, message,
+                RUNNING_STATUSES, TaskStatus.DEAD_LETTER);
+        return deadLetterCount + taskRepository.cleanZombieTasks(minHeartbeatTime, message,
+                RUNNING_STATUSES, TaskStatus.PENDING);
     }
 
     @Repository
@@ -103,18 +496,81 @@ public class JpaTaskRepository implements TaskRepository {
         @Modifying
         @Query("UPDATE JpaTaskRepository$TaskEntity t SET "
                 + "status = :pendingStatus, "
-                + "message = CONCAT('message', '\n', :message) "
-                + "WHERE status in :runningStatus and heartbeatAt < :minHeartbeatTime")
+                + "message = :message, "
+                + "version = version + 1 "
+                + "WHERE status in :runningStatus and heartbeatAt < :minHeartbeatTime and ownerId is null")
         int cleanZombieTasks(
                 @Param("minHeartbeatTime") LocalDateTime minHeartbeatTime, @Param("message") String message,
                 @Param("runningStatus") List<TaskStatus> runningStatus, @Param("pendingStatus") TaskStatus pendingStatus);
 
-        default int cleanZombieTasks(@Param("heartbeatTimeout") long heartbeatTimeout) {
-            var minHeartbeatTime = LocalDateTime.now().minus(heartbeatTimeout, MILLIS);
-            var message = String.format("Clean zombie task at [%s].",
-                    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").format(LocalDateTime.now()));
-            return cleanZombieTasks(minHeartbeatTime, message, List.of(TaskStatus.RUNNING, TaskStatus.STARTED), TaskStatus.PENDING);
-        }
+        @Modifying
+        @Query("UPDATE JpaTaskRepository$TaskEntity t SET "
+                + "status = :deadLetterStatus, endedAt = :endedAt, message = :message, version = version + 1 "
+                + "WHERE status in :runningStatus and heartbeatAt < :minHeartbeatTime and attempts >= maxAttempts "
+                + "and ownerId is null")
+        int deadLetterZombieTasks(
+                @Param("minHeartbeatTime") LocalDateTime minHeartbeatTime, @Param("endedAt") LocalDateTime endedAt,
+                @Param("message") String message,
+                @Param("runningStatus") List<TaskStatus> runningStatus,
+                @Param("deadLetterStatus") TaskStatus deadLetterStatus);
+
+        // served by idx_tasks_owner_id_status. ended_at is assigned before status, as mysql evaluates
+        // assignments from left to right. tasks out of attempts are likely to crash the node running them,
+        // they are not requeued
+        @Modifying
+        @Query(value = "UPDATE tasks SET "
+                + "ended_at = CASE WHEN attempts >= max_attempts THEN :now ELSE ended_at END, "
+                + "status = CASE WHEN attempts >= max_attempts THEN :deadLetterStatus ELSE :pendingStatus END, "
+                + "message = :message, owner_id = NULL, version = version + 1 "
+                + "WHERE owner_id = :ownerId AND status IN (:startedStatus, :runningStatus)", nativeQuery = true)
+        int releaseTasksOfOwner(@Param("ownerId") String ownerId, @Param("now") LocalDateTime now,
+                @Param("message") String message,
+                @Param("pendingStatus") String pendingStatus, @Param("deadLetterStatus") String deadLetterStatus,
+                @Param("startedStatus") String startedStatus, @Param("runningStatus") String runningStatus);
+
+        // attempts is assigned before status, as mysql evaluates assignments from left to right
+        @Modifying
+        @Query(value = "UPDATE tasks SET "
+                + "attempts = CASE WHEN status = :startedStatus THEN attempts - 1 ELSE attempts END, "
+                + "status = :pendingStatus, owner_id = NULL, version = version + 1 "
+                + "WHERE id IN (:ids) AND status IN (:startedStatus, :runningStatus)", nativeQuery = true)
+        int releaseTasks(@Param("ids") Collection<Long> ids, @Param("pendingStatus") String pendingStatus,
+                @Param("startedStatus") String startedStatus, @Param("runningStatus") String runningStatus);
+
+        @Modifying
+        @Query("UPDATE JpaTaskRepository$TaskEntity t SET status = :cancelledStatus, endedAt = :cancelledAt, "
+                + "version = version + 1 "
+                + "WHERE id = :id and status in :cancellableStatus")
+        int cancelTask(@Param("id") long id, @Param("cancelledAt") LocalDateTime cancelledAt,
+                @Param("cancellableStatus") List<TaskStatus> cancellableStatus,
+                @Param("cancelledStatus") TaskStatus cancelledStatus);
+
+        @Query("SELECT id FROM JpaTaskRepository$TaskEntity t WHERE id in :ids and status = :status")
+        List<Long> findIdsByStatus(@Param("ids") Collection<Long> ids, @Param("status") TaskStatus status);
+
+        // ids already in the archive are skipped instead of failing the whole batch on the primary key
+        @Modifying
+        @Query(value = "INSERT INTO tasks_archive (id, task_type, task_arg, status, message, version, "
+                + "created_at, due_at, priority, rank_at, attempts, max_attempts, owner_id, "
+                + "started_at, run_at, ended_at, heartbeat_at, partition_no, dedup_key, archived_at) "
+                + "SELECT id, task_type, task_arg, status, message, version, "
+                + "created_at, due_at, priority, rank_at, attempts, max_attempts, owner_id, "
+                + "started_at, run_at, ended_at, heartbeat_at, partition_no, dedup_key, :archivedAt "
+                + "FROM tasks WHERE id IN (:ids) "
+                + "AND NOT EXISTS (SELECT 1 FROM tasks_archive a WHERE a.id = tasks.id)", nativeQuery = true)
+        int copyToArchive(@Param("ids") Collection<Long> ids, @Param("archivedAt") LocalDateTime archivedAt);
+
+        @Modifying
+        @Query("DELETE FROM JpaTaskRepository$TaskEntity t WHERE id in :ids")
+        int deleteTasks(@Param("ids") Collection<Long> ids);
+
+        @Modifying
+        @Query(value = "DELETE FROM task_payloads WHERE task_id IN (:ids)", nativeQuery = true)
+        int deletePayloads(@Param("ids") Collection<Long> ids);
+
+        @Modifying
+        @Query(value = "DELETE FROM task_events WHERE task_id IN (:ids)", nativeQuery = true)
+        int deleteEvents(@Param("ids") Collection<Long> ids);
 
     }
 
@@ -123,16 +579,20 @@ public class JpaTaskRepository implements TaskRepository {
 
         TaskEntity fromTask(Task task);
 
+        @Mapping(target = "payload", ignore = true)
         Task toTask(TaskEntity task);
 
     }
 
     @Entity
+    // the table and its indexes are created by the flyway migrations in db/migration
+    @Table(name = "tasks")
     @Data
     public static class TaskEntity {
 
         @Id
-        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "tasks_seq")
+        @SequenceGenerator(name = "tasks_seq", sequenceName = "tasks_seq", allocationSize = 50)
         private Long id;
         private String taskType;
         @Column(columnDefinition = "TEXT")
@@ -143,6 +603,14 @@ public class JpaTaskRepository implements TaskRepository {
         private String message;
         private int version;
         private LocalDateTime createdAt;
+        private LocalDateTime dueAt;
+        private int priority;
+        private LocalDateTime rankAt;
+        private int partitionNo;
+        private int attempts;
+        private int maxAttempts;
+        private String ownerId;
+        private String dedupKey;
         private LocalDateTime startedAt;
         private LocalDateTime runAt;
         private LocalDateTime endedAt;
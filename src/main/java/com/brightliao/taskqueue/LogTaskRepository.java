@@ -0,0 +1,757 @@
+package com.brightliao.taskqueue;
+
+import static java.time.temporal.ChronoUnit.MILLIS;
+
+import com.brightliao.taskqueue.Task.TaskStatus;
+import com.brightliao.taskqueue.TaskLog.FsyncPolicy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+// keeps the whole queue in memory and writes every change as a record to a memory mapped log, which is replayed
+// on start. for single node deployments without a database. every method is atomic and durable on its own as
+// configured by the fsync policy, there is no rollback of the transactions wrapping the calls
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "task.repository", havingValue = "log")
+public class LogTaskRepository implements TaskRepository, DisposableBean {
+
+    private static final byte TASK = 1;
+    private static final byte TASK_DELETED = 2;
+    private static final byte PAYLOAD = 3;
+    private static final byte EVENT = 4;
+    private static final byte CONSUMER = 5;
+    private static final byte CONSUMER_DELETED = 6;
+    // the first record of a snapshot of the state, the records before a complete snapshot are not replayed
+    private static final byte SNAPSHOT = 7;
+    private static final Comparator<Task> RANK_ORDER = Comparator.comparing(Task::getRankAt).thenComparing(Task::getId);
+    private static final Comparator<Task> DUE_ORDER = Comparator.comparing(Task::getDueAt).thenComparing(Task::getId);
+    private static final Comparator<Task> END_ORDER = Comparator.comparing(Task::getEndedAt).thenComparing(Task::getId);
+    private static final Set<TaskStatus> OWNED_STATUSES = Set.of(TaskStatus.STARTED, TaskStatus.RUNNING);
+    private static final Set<TaskStatus> FINISHED_STATUSES = Set.of(TaskStatus.SUCCEEDED, TaskStatus.FAILED,
+            TaskStatus.DEAD_LETTER, TaskStatus.CANCELLED);
+
+    private final TaskLog taskLog;
+    private final TaskLog archiveLog;
+    private final int compactSegments;
+    // compacts the log off the calls appending to it, which are blocked while it runs
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "task-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Long, Task> tasks = new HashMap<>();
+    private final TreeSet<Task> pendingByRank = new TreeSet<>(RANK_ORDER);
+    private final TreeSet<Task> pendingByDue = new TreeSet<>(DUE_ORDER);
+    // finished tasks with an end time, scanned by the archiver from the oldest
+    private final TreeSet<Task> finishedByEnd = new TreeSet<>(END_ORDER);
+    // ids of started or running tasks, scanned by the zombie sweeps
+    private final Set<Long> ownedTaskIds = new LinkedHashSet<>();
+    // task ids by task type and dedup key, unique like the index of the sql repositories
+    private final Map<String, Long> dedupKeys = new HashMap<>();
+    private final Map<Long, TaskPayload> payloads = new HashMap<>();
+    private final Map<Long, ArrayDeque<TaskEvent>> events = new HashMap<>();
+    private final Map<String, LocalDateTime> consumerLeases = new HashMap<>();
+    // held by the running process only, a restarted node waits for the lock to expire like any other node
+    private final Map<String, Lock> locks = new HashMap<>();
+    private long nextTaskId = 1;
+    private long nextEventId = 1;
+    private long newTaskWatermark;
+    private int snapshotSegments = 1;
+    private boolean compactionScheduled;
+    private boolean closed;
+
+    public LogTaskRepository(@Value("${task.log.dir:/tmp/taskqueue.log}") String dir,
+            @Value("${task.log.segmentBytes:67108864}") int segmentBytes,
+            @Value("${task.log.fsync:interval}") String fsyncPolicy,
+            @Value("${task.log.fsyncIntervalMillis:100}") long fsyncIntervalMillis,
+            @Value("${task.log.compactSegments:4}") int compactSegments) {
+        var policy = FsyncPolicy.valueOf(fsyncPolicy.toUpperCase());
+        this.compactSegments = compactSegments;
+        this.taskLog = new TaskLog(Path.of(dir), segmentBytes, policy, fsyncIntervalMillis);
+        this.archiveLog = new TaskLog(Path.of(dir, "archive"), segmentBytes, policy, fsyncIntervalMillis);
+        taskLog.replay(this::replay);
+        // the archive is only appended to
+        archiveLog.replay((type, payload) -> {
+        });
+        log.info("replayed task log in {}, found {} tasks.", dir, tasks.size());
+    }
+
+    @Override
+    public synchronized void destroy() {
+        compactor.shutdownNow();
+        closed = true;
+        taskLog.close();
+        archiveLog.close();
+    }
+
+    private void replay(byte type, ByteBuffer record) {
+        switch (type) {
+            case TASK:
+                var task = readTask(record);
+                unindex(task.getId());
+                index(task);
+                nextTaskId = Math.max(nextTaskId, task.getId() + 1);
+                break;
+            case TASK_DELETED:
+                long id = record.getLong();
+                unindex(id);
+                payloads.remove(id);
+                events.remove(id);
+                break;
+            case PAYLOAD:
+                var payload = readPayload(record);
+                payloads.put(payload.getTaskId(), payload);
+                break;
+            case EVENT:
+                int maxEventsPerTask = record.getInt();
+                var event = readEvent(record);
+                keepEvent(event, maxEventsPerTask);
+                nextEventId = Math.max(nextEventId, event.getId() + 1);
+                break;
+            case CONSUMER:
+                consumerLeases.put(readString(record), readTime(record));
+                break;
+            case CONSUMER_DELETED:
+                consumerLeases.remove(readString(record));
+                break;
+            case SNAPSHOT:
+                // ids of deleted tasks are not reused
+                nextTaskId = Math.max(nextTaskId, record.getLong());
+                nextEventId = Math.max(nextEventId, record.getLong());
+                break;
+            default:
+                throw new RuntimeException(String.format("unknown record type %s in task log", type));
+        }
+    }
+
+    private List<Task> findNewTasks(int maxCount, Collection<String> excludedTaskTypes, Collection<Integer> partitions) {
+        var now = LocalDateTime.now();
+        var found = new ArrayList<Task>();
+        // rank_at is never after due_at, so no task ranked after now is due
+        for (var task : pendingByRank) {
+            if (found.size() >= maxCount || task.getRankAt().isAfter(now)) {
+                break;
+            }
+            if (!task.getDueAt().isAfter(now) && !excludedTaskTypes.contains(task.getTaskType())
+                    && (partitions.isEmpty() || partitions.contains(task.getPartitionNo()))) {
+                found.add(task);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId) {
+        return claimNewTasks(maxCount, excludedTaskTypes, ownerId, List.of());
+    }
+
+    @Override
+    public synchronized List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId,
+            Collection<Integer> partitions) {
+        var claimed = new ArrayList<Task>();
+        for (var task : findNewTasks(maxCount, excludedTaskTypes, partitions)) {
+            var started = copyOf(task);
+            started.markStarted(ownerId);
+            claimed.add(put(started));
+        }
+        taskLog.commit();
+        return claimed;
+    }
+
+    @Override
+    public synchronized LocalDateTime findNextDueAt(Collection<String> excludedTaskTypes) {
+        return pendingByDue.stream()
+                .filter(task -> !excludedTaskTypes.contains(task.getTaskType()))
+                .findFirst()
+                .map(Task::getDueAt)
+                .orElse(null);
+    }
+
+    @Override
+    public synchronized Task save(Task task) {
+        var saved = saveTask(task);
+        taskLog.commit();
+        return saved;
+    }
+
+    @Override
+    public synchronized List<Task> saveAll(List<Task> tasks) {
+        // nothing is saved if any of the tasks is stale or takes a dedup key, as the sql repositories roll back
+        var newKeys = new HashSet<String>();
+        for (var task : tasks) {
+            if (task.hasId()) {
+                ensureNewerVersion(task);
+            } else {
+                ensureDedupKeyFree(task, newKeys);
+            }
+        }
+        var savedTasks = tasks.stream().map(this::saveTask).collect(Collectors.toList());
+        taskLog.commit();
+        return savedTasks;
+    }
+
+    // the same version check as the update of the sql repositories
+    private Task saveTask(Task task) {
+        if (task.hasId()) {
+            var stored = ensureNewerVersion(task);
+            // the dedup key is only changed by releasing it, as the sql repositories do not update it
+            var updated = copyOf(task);
+            updated.setDedupKey(stored.getDedupKey());
+            put(updated);
+            return task;
+        }
+        ensureDedupKeyFree(task, new HashSet<>());
+        task.setId(nextTaskId++);
+        put(copyOf(task));
+        return task;
+    }
+
+    private Task ensureNewerVersion(Task task) {
+        var stored = tasks.get(task.getId());
+        if (stored == null || stored.getVersion() >= task.getVersion()) {
+            throw new RuntimeException(String.format("task %s is not found or found a bigger version >= %s in db, "
+                    + "will not do saving.", task.getId(), task.getVersion()));
+        }
+        return stored;
+    }
+
+    private void ensureDedupKeyFree(Task task, Set<String> newKeys) {
+        if (task.getDedupKey() == null) {
+            return;
+        }
+        var key = dedupKeyOf(task.getTaskType(), task.getDedupKey());
+        if (dedupKeys.containsKey(key) || !newKeys.add(key)) {
+            throw new DuplicateKeyException(String.format("dedup key %s of task %s is taken",
+                    task.getDedupKey(), task.getTaskType()));
+        }
+    }
+
+    @Override
+    public synchronized List<Task> insertUniqueTasks(List<Task> tasks) {
+        var insertedTasks = new ArrayList<Task>();
+        for (var task : tasks) {
+            // a saved task takes its key, so a key repeated in the tasks is skipped too
+            if (!dedupKeys.containsKey(dedupKeyOf(task.getTaskType(), task.getDedupKey()))) {
+                insertedTasks.add(saveTask(task));
+            }
+        }
+        taskLog.commit();
+        return insertedTasks;
+    }
+
+    @Override
+    public synchronized int releaseDedupKeys(Collection<String> taskTypes, Collection<String> excludedTaskTypes,
+            LocalDateTime createdBefore) {
+        var releasedTasks = dedupKeys.values().stream()
+                .map(tasks::get)
+                .filter(task -> task.getCreatedAt().isBefore(createdBefore))
+                .filter(task -> taskTypes.isEmpty() || taskTypes.contains(task.getTaskType()))
+                .filter(task -> !excludedTaskTypes.contains(task.getTaskType()))
+                .collect(Collectors.toList());
+        for (var task : releasedTasks) {
+            var released = copyOf(task);
+            released.setDedupKey(null);
+            put(released);
+        }
+        taskLog.commit();
+        return releasedTasks.size();
+    }
+
+    private static String dedupKeyOf(String taskType, String dedupKey) {
+        return taskType + '\u0000' + dedupKey;
+    }
+
+    @Override
+    public synchronized void renewConsumerLease(String nodeId, LocalDateTime leaseExpiresAt) {
+        consumerLeases.put(nodeId, leaseExpiresAt);
+        taskLog.append(CONSUMER, encode(out -> {
+            writeString(out, nodeId);
+            writeTime(out, leaseExpiresAt);
+        }));
+        taskLog.commit();
+    }
+
+    @Override
+    public synchronized List<String> findExpiredConsumers(LocalDateTime now) {
+        return consumerLeases.entrySet().stream()
+                .filter(lease -> lease.getValue().isBefore(now))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized int releaseTasksOfOwner(String ownerId, LocalDateTime now, String message,
+            int maxEventsPerTask) {
+        int releasedCount = recoverZombies(task -> ownerId.equals(task.getOwnerId()), now, message, maxEventsPerTask);
+        taskLog.commit();
+        return releasedCount;
+    }
+
+    @Override
+    public synchronized int deleteConsumer(String nodeId, LocalDateTime expiredBefore) {
+        var leaseExpiresAt = consumerLeases.get(nodeId);
+        if (leaseExpiresAt == null || !leaseExpiresAt.isBefore(expiredBefore)) {
+            return 0;
+        }
+        consumerLeases.remove(nodeId);
+        taskLog.append(CONSUMER_DELETED, encode(out -> writeString(out, nodeId)));
+        taskLog.commit();
+        return 1;
+    }
+
+    @Override
+    public synchronized boolean tryAcquireLock(String name, String ownerId, LocalDateTime now,
+            LocalDateTime leaseExpiresAt) {
+        var lock = locks.get(name);
+        if (lock != null && !lock.ownerId.equals(ownerId) && !lock.leaseExpiresAt.isBefore(now)) {
+            return false;
+        }
+        locks.put(name, new Lock(ownerId, leaseExpiresAt));
+        return true;
+    }
+
+    @Override
+    public synchronized int releaseTasks(Collection<Long> ids) {
+        int releasedCount = 0;
+        for (var id : ids) {
+            var task = tasks.get(id);
+            if (task == null || !OWNED_STATUSES.contains(task.getStatus())) {
+                continue;
+            }
+            var released = copyOf(task);
+            if (released.getStatus() == TaskStatus.STARTED) {
+                released.setAttempts(released.getAttempts() - 1);
+            }
+            released.setStatus(TaskStatus.PENDING);
+            released.setOwnerId(null);
+            released.setVersion(released.getVersion() + 1);
+            put(released);
+            releasedCount++;
+        }
+        taskLog.commit();
+        return releasedCount;
+    }
+
+    @Override
+    public synchronized int cancelTask(long id, LocalDateTime cancelledAt) {
+        var task = tasks.get(id);
+        if (task == null || (task.getStatus() != TaskStatus.PENDING && !OWNED_STATUSES.contains(task.getStatus()))) {
+            return 0;
+        }
+        var cancelled = copyOf(task);
+        cancelled.setStatus(TaskStatus.CANCELLED);
+        cancelled.setEndedAt(cancelledAt);
+        cancelled.setVersion(cancelled.getVersion() + 1);
+        put(cancelled);
+        taskLog.commit();
+        return 1;
+    }
+
+    @Override
+    public synchronized List<Long> findCancelledTaskIds(Collection<Long> ids) {
+        return ids.stream()
+                .filter(id -> tasks.containsKey(id) && tasks.get(id).getStatus() == TaskStatus.CANCELLED)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized int cleanZombieTasks(long heartbeatTimeout, int maxEventsPerTask) {
+        var now = LocalDateTime.now();
+        var minHeartbeatTime = now.minus(heartbeatTimeout, MILLIS);
+        var message = String.format("Clean zombie task at [%s].",
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").format(now));
+        int cleanedCount = recoverZombies(task -> task.getOwnerId() == null
+                && task.getHeartbeatAt() != null && task.getHeartbeatAt().isBefore(minHeartbeatTime),
+                now, message, maxEventsPerTask);
+        taskLog.commit();
+        return cleanedCount;
+    }
+
+    // zombie tasks out of attempts are likely to crash the node running them, they are not requeued
+    private int recoverZombies(Predicate<Task> isZombie, LocalDateTime now, String message,
+            int maxEventsPerTask) {
+        var zombies = ownedTaskIds.stream()
+                .map(tasks::get)
+                .filter(isZombie)
+                .collect(Collectors.toList());
+        for (var zombie : zombies) {
+            var recovered = copyOf(zombie);
+            var deadLetter = !recovered.hasAttemptsLeft();
+            recovered.setStatus(deadLetter ? TaskStatus.DEAD_LETTER : TaskStatus.PENDING);
+            if (deadLetter) {
+                recovered.setEndedAt(now);
+            }
+            recovered.setMessage(message);
+            recovered.setOwnerId(null);
+            recovered.setVersion(recovered.getVersion() + 1);
+            put(recovered);
+            appendEvent(new TaskEvent(null, recovered.getId(),
+                    deadLetter ? TaskEvent.Type.DEAD_LETTER : TaskEvent.Type.ZOMBIE_RECOVERED, message, now),
+                    maxEventsPerTask);
+        }
+        return zombies.size();
+    }
+
+    @Override
+    public synchronized List<Long> findFinishedTaskIds(Collection<String> taskTypes,
+            Collection<String> excludedTaskTypes, LocalDateTime endedBefore, int maxCount) {
+        return finishedByEnd.stream()
+                .takeWhile(task -> task.getEndedAt().isBefore(endedBefore))
+                .filter(task -> taskTypes.isEmpty() || taskTypes.contains(task.getTaskType()))
+                .filter(task -> !excludedTaskTypes.contains(task.getTaskType()))
+                .limit(maxCount)
+                .map(Task::getId)
+                .collect(Collectors.toList());
+    }
+
+    // the tasks, their payloads and events are appended to the archive log, which is never read by the queue
+    @Override
+    public synchronized int archiveTasks(Collection<Long> ids) {
+        for (var id : ids) {
+            var task = tasks.get(id);
+            if (task == null) {
+                continue;
+            }
+            archiveLog.append(TASK, encode(out -> writeTask(out, task)));
+            if (payloads.containsKey(id)) {
+                archiveLog.append(PAYLOAD, encode(out -> writePayload(out, payloads.get(id))));
+            }
+            for (var event : events.getOrDefault(id, new ArrayDeque<>())) {
+                archiveLog.append(EVENT, encode(out -> {
+                    out.writeInt(Integer.MAX_VALUE);
+                    writeEvent(out, event);
+                }));
+            }
+        }
+        archiveLog.commit();
+        return deleteTasks(ids);
+    }
+
+    @Override
+    public synchronized int deleteTasks(Collection<Long> ids) {
+        int deletedCount = 0;
+        for (var id : ids) {
+            if (unindex(id) == null) {
+                continue;
+            }
+            payloads.remove(id);
+            events.remove(id);
+            taskLog.append(TASK_DELETED, encode(out -> out.writeLong(id)));
+            deletedCount++;
+        }
+        taskLog.commit();
+        scheduleCompaction();
+        return deletedCount;
+    }
+
+    @Override
+    public synchronized void savePayloads(List<TaskPayload> payloads) {
+        for (var payload : payloads) {
+            this.payloads.put(payload.getTaskId(), payload);
+            taskLog.append(PAYLOAD, encode(out -> writePayload(out, payload)));
+        }
+        taskLog.commit();
+    }
+
+    @Override
+    public synchronized List<TaskPayload> findPayloads(Collection<Long> taskIds) {
+        return taskIds.stream()
+                .filter(payloads::containsKey)
+                .map(payloads::get)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized void addEvents(List<TaskEvent> events, int maxEventsPerTask) {
+        events.forEach(event -> appendEvent(event, maxEventsPerTask));
+        taskLog.commit();
+    }
+
+    private void appendEvent(TaskEvent event, int maxEventsPerTask) {
+        var saved = new TaskEvent(nextEventId++, event.getTaskId(), event.getType(), event.getMessage(),
+                event.getCreatedAt());
+        keepEvent(saved, maxEventsPerTask);
+        taskLog.append(EVENT, encode(out -> {
+            out.writeInt(maxEventsPerTask);
+            writeEvent(out, saved);
+        }));
+    }
+
+    private void keepEvent(TaskEvent event, int maxEventsPerTask) {
+        var taskEvents = events.computeIfAbsent(event.getTaskId(), taskId -> new ArrayDeque<>());
+        taskEvents.addLast(event);
+        while (taskEvents.size() > maxEventsPerTask) {
+            taskEvents.removeFirst();
+        }
+    }
+
+    @Override
+    public synchronized List<TaskEvent> findEvents(long taskId) {
+        return new ArrayList<>(events.getOrDefault(taskId, new ArrayDeque<>()));
+    }
+
+    // the log is read by this process only, the watermark only has to move within it
+    @Override
+    public synchronized void touchNewTaskWatermark() {
+        newTaskWatermark++;
+    }
+
+    @Override
+    public synchronized long findNewTaskWatermark() {
+        return newTaskWatermark;
+    }
+
+    private Task put(Task task) {
+        unindex(task.getId());
+        index(task);
+        taskLog.append(TASK, encode(out -> writeTask(out, task)));
+        scheduleCompaction();
+        return copyOf(task);
+    }
+
+    private void index(Task task) {
+        tasks.put(task.getId(), task);
+        if (task.getStatus() == TaskStatus.PENDING) {
+            pendingByRank.add(task);
+            pendingByDue.add(task);
+        } else if (OWNED_STATUSES.contains(task.getStatus())) {
+            ownedTaskIds.add(task.getId());
+        } else if (FINISHED_STATUSES.contains(task.getStatus()) && task.getEndedAt() != null) {
+            finishedByEnd.add(task);
+        }
+        if (task.getDedupKey() != null) {
+            dedupKeys.put(dedupKeyOf(task.getTaskType(), task.getDedupKey()), task.getId());
+        }
+    }
+
+    private Task unindex(long id) {
+        var task = tasks.remove(id);
+        if (task != null) {
+            pendingByRank.remove(task);
+            pendingByDue.remove(task);
+            ownedTaskIds.remove(id);
+            if (task.getEndedAt() != null) {
+                finishedByEnd.remove(task);
+            }
+            if (task.getDedupKey() != null) {
+                dedupKeys.remove(dedupKeyOf(task.getTaskType(), task.getDedupKey()));
+            }
+        }
+        return task;
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled && taskLog.segmentCount() >= snapshotSegments + compactSegments) {
+            compactionScheduled = true;
+            compactor.execute(this::compactIfScheduled);
+        }
+    }
+
+    private synchronized void compactIfScheduled() {
+        compactionScheduled = false;
+        if (!closed) {
+            compact();
+        }
+    }
+
+    // rewrites the live state into new segments and drops the old ones, which hold overwritten and deleted tasks
+    synchronized void compact() {
+        taskLog.startSnapshot();
+        taskLog.append(SNAPSHOT, encode(out -> {
+            out.writeLong(nextTaskId);
+            out.writeLong(nextEventId);
+        }));
+        for (var task : tasks.values()) {
+            taskLog.append(TASK, encode(out -> writeTask(out, task)));
+        }
+        for (var payload : payloads.values()) {
+            taskLog.append(PAYLOAD, encode(out -> writePayload(out, payload)));
+        }
+        for (var taskEvents : events.values()) {
+            for (var event : taskEvents) {
+                taskLog.append(EVENT, encode(out -> {
+                    out.writeInt(taskEvents.size());
+                    writeEvent(out, event);
+                }));
+            }
+        }
+        for (var lease : consumerLeases.entrySet()) {
+            taskLog.append(CONSUMER, encode(out -> {
+                writeString(out, lease.getKey());
+                writeTime(out, lease.getValue());
+            }));
+        }
+        taskLog.endSnapshot();
+        snapshotSegments = taskLog.segmentCount();
+        log.info("compacted task log into {} segments with {} tasks.", snapshotSegments, tasks.size());
+    }
+
+    private static Task copyOf(Task task) {
+        return readTask(ByteBuffer.wrap(encode(out -> writeTask(out, task))));
+    }
+
+    private static byte[] encode(RecordWriter writer) {
+        var bytes = new ByteArrayOutputStream(256);
+        try (var out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeTask(DataOutputStream out, Task task) throws IOException {
+        out.writeLong(task.getId());
+        writeString(out, task.getTaskType());
+        writeString(out, task.getTaskArg());
+        writeString(out, task.getStatus().name());
+        writeString(out, task.getMessage());
+        out.writeInt(task.getVersion());
+        writeTime(out, task.getCreatedAt());
+        writeTime(out, task.getDueAt());
+        out.writeInt(task.getPriority());
+        writeTime(out, task.getRankAt());
+        out.writeInt(task.getPartitionNo());
+        out.writeInt(task.getAttempts());
+        out.writeInt(task.getMaxAttempts());
+        writeString(out, task.getOwnerId());
+        writeString(out, task.getDedupKey());
+        writeTime(out, task.getStartedAt());
+        writeTime(out, task.getRunAt());
+        writeTime(out, task.getEndedAt());
+        writeTime(out, task.getHeartbeatAt());
+    }
+
+    private static Task readTask(ByteBuffer in) {
+        var task = new Task();
+        task.setId(in.getLong());
+        task.setTaskType(readString(in));
+        task.setTaskArg(readString(in));
+        task.setStatus(TaskStatus.valueOf(readString(in)));
+        task.setMessage(readString(in));
+        task.setVersion(in.getInt());
+        task.setCreatedAt(readTime(in));
+        task.setDueAt(readTime(in));
+        task.setPriority(in.getInt());
+        task.setRankAt(readTime(in));
+        task.setPartitionNo(in.getInt());
+        task.setAttempts(in.getInt());
+        task.setMaxAttempts(in.getInt());
+        task.setOwnerId(readString(in));
+        task.setDedupKey(readString(in));
+        task.setStartedAt(readTime(in));
+        task.setRunAt(readTime(in));
+        task.setEndedAt(readTime(in));
+        task.setHeartbeatAt(readTime(in));
+        return task;
+    }
+
+    private static void writePayload(DataOutputStream out, TaskPayload payload) throws IOException {
+        out.writeLong(payload.getTaskId());
+        writeString(out, payload.getEncoding());
+        out.writeInt(payload.getData().length);
+        out.write(payload.getData());
+    }
+
+    private static TaskPayload readPayload(ByteBuffer in) {
+        long taskId = in.getLong();
+        var encoding = readString(in);
+        var data = new byte[in.getInt()];
+        in.get(data);
+        return new TaskPayload(taskId, encoding, data);
+    }
+
+    private static void writeEvent(DataOutputStream out, TaskEvent event) throws IOException {
+        out.writeLong(event.getId());
+        out.writeLong(event.getTaskId());
+        writeString(out, event.getType().name());
+        writeString(out, event.getMessage());
+        writeTime(out, event.getCreatedAt());
+    }
+
+    private static TaskEvent readEvent(ByteBuffer in) {
+        return new TaskEvent(in.getLong(), in.getLong(), TaskEvent.Type.valueOf(readString(in)), readString(in),
+                readTime(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private static LocalDateTime readTime(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        return LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+    }
+
+    private interface RecordWriter {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class Lock {
+
+        private final String ownerId;
+        private final LocalDateTime leaseExpiresAt;
+
+        private Lock(String ownerId, LocalDateTime leaseExpiresAt) {
+            this.ownerId = ownerId;
+            this.leaseExpiresAt = leaseExpiresAt;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 
 @EqualsAndHashCode
@@ -15,17 +16,37 @@ import java.time.LocalDateTime;
 @Getter
 public class Task {
 
+    public static final int MAX_MESSAGE_LENGTH = 1000;
+
     private Long id;
     private String taskType;
     private String taskArg;
     private TaskStatus status;
+    // the last error only, the history of a task is kept in its events
     private String message;
     private int version;
     private LocalDateTime createdAt;
+    // the task will not be claimed before this time
+    private LocalDateTime dueAt;
+    // higher priorities are claimed first
+    private int priority;
+    // tasks are claimed in the order of rankAt, which is dueAt brought forward by the priority
+    private LocalDateTime rankAt;
+    // consumers claim from their own partitions first, see TaskQueue.partitionOf
+    private int partitionNo;
+    // the number of times the task has been claimed
+    private int attempts;
+    private int maxAttempts;
+    // the node id of the consumer which claimed the task
+    private String ownerId;
+    // unique among the tasks of the type within its dedup window, null for tasks which may be duplicated
+    private String dedupKey;
     private LocalDateTime startedAt;
     private LocalDateTime runAt;
     private LocalDateTime endedAt;
     private LocalDateTime heartbeatAt;
+    // the arg of a task too large for the tasks row, set on a task being added or claimed, taskArg is null then
+    private TaskPayload payload;
 
     public Task(String taskType, String taskArg) {
         this(null, taskType, taskArg, TaskStatus.PENDING);
@@ -37,6 +58,9 @@ public class Task {
         this.taskArg = taskArg;
         this.status = status;
         this.createdAt = LocalDateTime.now();
+        this.dueAt = this.createdAt;
+        this.rankAt = this.createdAt;
+        this.maxAttempts = TaskOptions.DEFAULT_MAX_ATTEMPTS;
         this.version = 0;
     }
 
@@ -44,6 +68,10 @@ public class Task {
         return status == TaskStatus.SUCCEEDED;
     }
 
+    public boolean hasAttemptsLeft() {
+        return attempts < maxAttempts;
+    }
+
     public String getType() {
         return taskType;
     }
@@ -52,6 +80,17 @@ public class Task {
         return taskArg;
     }
 
+    // each priority level ranks the task as if it was due one aging step earlier,
+    // so a low priority task waits at most (priority difference * aging step) behind higher ones
+    public void schedule(LocalDateTime dueAt, int priority, Duration priorityAgingStep) {
+        if (priority < 0) {
+            throw new RuntimeException(String.format("priority should not be negative: %s", priority));
+        }
+        this.dueAt = dueAt;
+        this.priority = priority;
+        this.rankAt = dueAt.minus(priorityAgingStep.multipliedBy(priority));
+    }
+
     public void markRunning() {
         this.status = TaskStatus.RUNNING;
         this.runAt = LocalDateTime.now();
@@ -59,10 +98,12 @@ public class Task {
         version += 1;
     }
 
-    public void markStarted() {
+    public void markStarted(String ownerId) {
         this.status = TaskStatus.STARTED;
+        this.ownerId = ownerId;
         this.startedAt = LocalDateTime.now();
         this.heartbeatAt = LocalDateTime.now();
+        attempts += 1;
         version += 1;
     }
 
@@ -77,12 +118,31 @@ public class Task {
         this.status = TaskStatus.FAILED;
         this.endedAt = LocalDateTime.now();
         this.heartbeatAt = LocalDateTime.now();
-        this.message = this.message == null ? e.getMessage() : this.message + "\n" + e.getMessage();
+        setLastError(e.getMessage());
         version += 1;
     }
 
-    public void heartbeat() {
+    // back to the queue, to be claimed again after dueAt
+    public void markRetrying(Exception e, LocalDateTime dueAt, Duration priorityAgingStep) {
+        this.status = TaskStatus.PENDING;
+        this.ownerId = null;
         this.heartbeatAt = LocalDateTime.now();
+        schedule(dueAt, priority, priorityAgingStep);
+        setLastError(e.getMessage());
+        version += 1;
+    }
+
+    public void markDeadLetter(Exception e) {
+        this.status = TaskStatus.DEAD_LETTER;
+        this.endedAt = LocalDateTime.now();
+        this.heartbeatAt = LocalDateTime.now();
+        setLastError(e.getMessage());
+        version += 1;
+    }
+
+    private void setLastError(String message) {
+        this.message = message != null && message.length() > MAX_MESSAGE_LENGTH
+                ? message.substring(0, MAX_MESSAGE_LENGTH) : message;
     }
 
     public Long getId() {
@@ -98,6 +158,9 @@ public class Task {
         STARTED,
         RUNNING,
         SUCCEEDED,
-        FAILED
+        FAILED,
+        // failed after all the attempts
+        DEAD_LETTER,
+        CANCELLED
     }
 }
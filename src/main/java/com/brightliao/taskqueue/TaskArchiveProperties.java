@@ -0,0 +1,23 @@
+package com.brightliao.taskqueue;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "task.archive")
+public class TaskArchiveProperties {
+
+    private boolean enabled = true;
+    private long intervalMillis = 60000;
+    // delete finished tasks instead of moving them to the archive table
+    private boolean deleteOnly = false;
+    private int batchSize = 500;
+    private Duration retention = Duration.ofDays(7);
+    private Map<String, Duration> retentionByType = new HashMap<>();
+}
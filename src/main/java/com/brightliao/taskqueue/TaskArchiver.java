@@ -0,0 +1,71 @@
+package com.brightliao.taskqueue;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class TaskArchiver {
+
+    private static final String ARCHIVER_LOCK = "task_archiver";
+
+    private final TaskRepository taskRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final TaskArchiveProperties properties;
+    private final String ownerId = UUID.randomUUID().toString();
+
+    @Scheduled(fixedDelayString = "${task.archive.intervalMillis:60000}", initialDelayString = "${task.archive.intervalMillis:60000}")
+    public int archiveFinishedTasks() {
+        if (!properties.isEnabled()) {
+            return 0;
+        }
+        var now = LocalDateTime.now();
+        if (!tryAcquireLock(now)) {
+            log.debug("archiver lock is held by another node, skip archiving finished tasks.");
+            return 0;
+        }
+        log.info("start to archive finished tasks.");
+        int archivedCount = 0;
+        for (var retention : properties.getRetentionByType().entrySet()) {
+            archivedCount += archiveInBatches(List.of(retention.getKey()), List.of(), now.minus(retention.getValue()));
+        }
+        archivedCount += archiveInBatches(List.of(), properties.getRetentionByType().keySet(), now.minus(properties.getRetention()));
+        log.info("archived {} finished tasks.", archivedCount);
+        return archivedCount;
+    }
+
+    // only the node holding the archiver lock archives, the lock is held for two intervals like the zombie sweeper
+    // lock, so that it stays with one node as long as the node is alive
+    private boolean tryAcquireLock(LocalDateTime now) {
+        return transactionTemplate.execute(status -> taskRepository.tryAcquireLock(ARCHIVER_LOCK, ownerId, now,
+                now.plus(Duration.ofMillis(properties.getIntervalMillis() * 2))));
+    }
+
+    // every batch runs in its own short transaction, so that archiving never holds locks on many rows
+    private int archiveInBatches(Collection<String> taskTypes, Collection<String> excludedTaskTypes, LocalDateTime endedBefore) {
+        int archivedCount = 0;
+        while (true) {
+            int batchCount = transactionTemplate.execute(status -> {
+                var ids = taskRepository.findFinishedTaskIds(taskTypes, excludedTaskTypes, endedBefore, properties.getBatchSize());
+                if (ids.isEmpty()) {
+                    return 0;
+                }
+                return properties.isDeleteOnly() ? taskRepository.deleteTasks(ids) : taskRepository.archiveTasks(ids);
+            });
+            archivedCount += batchCount;
+            if (batchCount < properties.getBatchSize()) {
+                return archivedCount;
+            }
+        }
+    }
+}
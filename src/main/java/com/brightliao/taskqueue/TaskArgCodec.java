@@ -0,0 +1,149 @@
+package com.brightliao.taskqueue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// writes and reads task args with writers and readers cached per arg type. an arg larger than the external
+// threshold in json is stored as a payload out of the tasks row, in the payload encoding, and gzipped if it is
+// still larger than the compress threshold
+public class TaskArgCodec {
+
+    public static final String JSON = "json";
+    public static final String SMILE = "smile";
+    private static final String GZIP_SUFFIX = "+gzip";
+
+    private final ObjectMapper objectMapper;
+    private final String payloadEncoding;
+    // only reads and writes trees, the args are mapped to trees by objectMapper so its settings still apply
+    private final ObjectMapper smileMapper;
+    private final int externalThresholdBytes;
+    private final int compressThresholdBytes;
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    public TaskArgCodec(ObjectMapper objectMapper, String payloadEncoding, int externalThresholdBytes,
+            int compressThresholdBytes) {
+        if (!JSON.equals(payloadEncoding) && !SMILE.equals(payloadEncoding)) {
+            throw new RuntimeException(String.format("unknown payload encoding: %s", payloadEncoding));
+        }
+        this.objectMapper = objectMapper;
+        this.payloadEncoding = payloadEncoding;
+        this.smileMapper = new ObjectMapper(new SmileFactory());
+        this.externalThresholdBytes = externalThresholdBytes;
+        this.compressThresholdBytes = compressThresholdBytes;
+    }
+
+    public <T> ObjectReader readerFor(Class<T> argType) {
+        return readers.computeIfAbsent(argType, objectMapper::readerFor);
+    }
+
+    // sets the arg as the task_arg of the task, or as its payload if it is large
+    public void writeArg(Task task, Object arg) {
+        try {
+            var json = writerFor(arg).writeValueAsBytes(arg);
+            if (json.length <= externalThresholdBytes) {
+                task.setTaskArg(new String(json, StandardCharsets.UTF_8));
+                return;
+            }
+            task.setTaskArg(null);
+            task.setPayload(encodePayload(json));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ObjectWriter writerFor(Object arg) {
+        return arg == null ? objectMapper.writer() : writers.computeIfAbsent(arg.getClass(), objectMapper::writerFor);
+    }
+
+    private TaskPayload encodePayload(byte[] json) throws IOException {
+        var encoding = payloadEncoding;
+        var data = SMILE.equals(encoding) ? smileMapper.writeValueAsBytes(objectMapper.readTree(json)) : json;
+        if (data.length > compressThresholdBytes) {
+            encoding += GZIP_SUFFIX;
+            data = gzip(data);
+        }
+        return new TaskPayload(null, encoding, data);
+    }
+
+    // the json arg of a task for the handlers taking strings, the arg of a payload is read as json like the args
+    // stored in the tasks rows
+    public String readArg(Task task) {
+        if (task.getTaskArg() != null || task.getPayload() == null) {
+            return task.getTaskArg();
+        }
+        return readPayload(task.getPayload());
+    }
+
+    // the arg of a payload is read from its bytes, or from its tree in smile, without being turned into json first
+    public <T> T readArg(Task task, ObjectReader reader) throws IOException {
+        if (task.getTaskArg() != null || task.getPayload() == null) {
+            return reader.readValue(task.getTaskArg());
+        }
+        var payload = task.getPayload();
+        var data = decompress(payload);
+        switch (encodingOf(payload)) {
+            case SMILE:
+                return reader.readValue(smileMapper.readTree(data));
+            case JSON:
+                return reader.readValue(data);
+            default:
+                throw unknownEncoding(payload);
+        }
+    }
+
+    public String readPayload(TaskPayload payload) {
+        try {
+            var data = decompress(payload);
+            switch (encodingOf(payload)) {
+                case SMILE:
+                    return objectMapper.writeValueAsString(smileMapper.readTree(data));
+                case JSON:
+                    return new String(data, StandardCharsets.UTF_8);
+                default:
+                    throw unknownEncoding(payload);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String encodingOf(TaskPayload payload) {
+        var encoding = payload.getEncoding();
+        return encoding.endsWith(GZIP_SUFFIX) ? encoding.substring(0, encoding.length() - GZIP_SUFFIX.length()) : encoding;
+    }
+
+    private static byte[] decompress(TaskPayload payload) throws IOException {
+        return payload.getEncoding().endsWith(GZIP_SUFFIX) ? gunzip(payload.getData()) : payload.getData();
+    }
+
+    private static RuntimeException unknownEncoding(TaskPayload payload) {
+        return new RuntimeException(String.format("unknown payload encoding of task %s: %s",
+                payload.getTaskId(), payload.getEncoding()));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        var out = new ByteArrayOutputStream(data.length / 4);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (var gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return gzip.readAllBytes();
+        }
+    }
+}
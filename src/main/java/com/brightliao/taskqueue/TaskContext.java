@@ -0,0 +1,21 @@
+package com.brightliao.taskqueue;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+// passed to a running handler, long running handlers should check isCancelled periodically and return early
+@RequiredArgsConstructor
+public class TaskContext {
+
+    @Getter
+    private final long taskId;
+    private volatile boolean cancelled = false;
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+}
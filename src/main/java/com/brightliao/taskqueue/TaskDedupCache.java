@@ -0,0 +1,41 @@
+package com.brightliao.taskqueue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// the dedup keys this node added, until their windows end. the least recently used keys are evicted beyond
+// the max size, an evicted key is only checked against the database
+class TaskDedupCache {
+
+    private final Map<String, Long> expiresAtMillisByKey;
+
+    TaskDedupCache(int maxSize) {
+        this.expiresAtMillisByKey = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized boolean contains(String taskType, String dedupKey, long nowMillis) {
+        var key = cacheKey(taskType, dedupKey);
+        var expiresAtMillis = expiresAtMillisByKey.get(key);
+        if (expiresAtMillis == null) {
+            return false;
+        }
+        if (expiresAtMillis <= nowMillis) {
+            expiresAtMillisByKey.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    synchronized void add(String taskType, String dedupKey, long expiresAtMillis) {
+        expiresAtMillisByKey.put(cacheKey(taskType, dedupKey), expiresAtMillis);
+    }
+
+    private static String cacheKey(String taskType, String dedupKey) {
+        return taskType + '\u0000' + dedupKey;
+    }
+}
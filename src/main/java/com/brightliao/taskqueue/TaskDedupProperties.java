@@ -0,0 +1,25 @@
+package com.brightliao.taskqueue;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "task.dedup")
+public class TaskDedupProperties {
+
+    // a task is a duplicate of a task of the same type and dedup key added within the window
+    private Duration window = Duration.ofHours(1);
+    private Map<String, Duration> windowByType = new HashMap<>();
+    // keys added recently by this node, duplicates of them are rejected without going to the database
+    private int cacheSize = 10000;
+
+    public Duration windowOf(String taskType) {
+        return windowByType.getOrDefault(taskType, window);
+    }
+}
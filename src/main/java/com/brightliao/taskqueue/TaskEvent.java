@@ -0,0 +1,29 @@
+package com.brightliao.taskqueue;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+
+@Getter
+@AllArgsConstructor
+public class TaskEvent {
+
+    // null until the event is saved
+    private final Long id;
+    private final long taskId;
+    private final Type type;
+    private final String message;
+    private final LocalDateTime createdAt;
+
+    public enum Type {
+        // failed without being retried, e.g. no handler is registered
+        FAILED,
+        // failed and will be retried
+        RETRIED,
+        // failed after all the attempts, including zombie tasks out of attempts
+        DEAD_LETTER,
+        // left by a dead consumer and requeued
+        ZOMBIE_RECOVERED
+    }
+}
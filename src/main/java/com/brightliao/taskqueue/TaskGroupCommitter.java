@@ -0,0 +1,124 @@
+package com.brightliao.taskqueue;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+@Slf4j
+public class TaskGroupCommitter {
+
+    private final BlockingQueue<PendingTask> pendingTasks = new LinkedBlockingQueue<>();
+    private final Consumer<List<Task>> committer;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Duration timeout;
+    private final Thread committerThread;
+    private volatile boolean stopped = false;
+
+    public TaskGroupCommitter(Consumer<List<Task>> committer, Duration window, int maxBatchSize, Duration timeout) {
+        this.committer = committer;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.timeout = timeout;
+        this.committerThread = new Thread(this::run, "task-group-committer");
+        this.committerThread.setDaemon(true);
+        this.committerThread.start();
+    }
+
+    // blocks until the transaction containing the task is committed, fails after the timeout, while a task already
+    // in a batch being committed may still be committed then
+    public void add(Task task) {
+        if (stopped) {
+            throw stoppedException();
+        }
+        var pendingTask = new PendingTask(task);
+        pendingTasks.add(pendingTask);
+        // stop() may have failed the pending tasks before this one was added
+        if (stopped && pendingTasks.remove(pendingTask)) {
+            throw stoppedException();
+        }
+        try {
+            pendingTask.committed.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            var message = pendingTasks.remove(pendingTask)
+                    ? "task is not group committed in %s, it is dropped"
+                    : "task is not group committed in %s, it may still be committed";
+            throw new RuntimeException(String.format(message, timeout), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            var batch = new ArrayList<PendingTask>(maxBatchSize);
+            try {
+                batch.add(pendingTasks.take());
+                var deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    var pendingTask = pendingTasks.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (pendingTask == null) {
+                        break;
+                    }
+                    batch.add(pendingTask);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch);
+            }
+        }
+    }
+
+    private void commit(List<PendingTask> batch) {
+        try {
+            committer.accept(batch.stream().map(pendingTask -> pendingTask.task).collect(Collectors.toList()));
+            log.info("group committed {} tasks.", batch.size());
+            batch.forEach(pendingTask -> pendingTask.committed.complete(null));
+        } catch (Exception e) {
+            log.warn("group commit of {} tasks failed.", batch.size(), e);
+            batch.forEach(pendingTask -> pendingTask.committed.completeExceptionally(e));
+        }
+    }
+
+    // a batch being committed is committed still, the tasks not in it are failed, and tasks added later are rejected
+    public void stop() {
+        stopped = true;
+        committerThread.interrupt();
+        var pending = new ArrayList<PendingTask>();
+        pendingTasks.drainTo(pending);
+        fail(pending);
+    }
+
+    private static void fail(List<PendingTask> pending) {
+        pending.forEach(pendingTask -> pendingTask.committed.completeExceptionally(stoppedException()));
+    }
+
+    private static RuntimeException stoppedException() {
+        return new RuntimeException("task group committer is stopped");
+    }
+
+    @RequiredArgsConstructor
+    private static class PendingTask {
+
+        private final Task task;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+    }
+}
@@ -3,4 +3,9 @@ package com.brightliao.taskqueue;
 public interface TaskHandler {
 
     void run(String argString);
+
+    // override this one to observe cancellation of the task
+    default void run(String argString, TaskContext context) {
+        run(argString);
+    }
 }
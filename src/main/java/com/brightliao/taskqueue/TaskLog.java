@@ -0,0 +1,284 @@
+package com.brightliao.taskqueue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+// an append only log of records in memory mapped segment files of a fixed size, a record larger than that gets a
+// segment of its own of its size.
+// a record is [length][crc32][type][payload], a zero length marks the end of the records in a segment,
+// and a record failing its crc is a torn write of a crash, the segment is written from there on again.
+// a snapshot starts a segment of its own, and replaces the records before it once its end is written
+@Slf4j
+class TaskLog implements AutoCloseable {
+
+    private static final int HEADER_BYTES = 8;
+    // record types of the log itself, the types of the records of the callers are positive
+    private static final byte SNAPSHOT_START = -1;
+    private static final byte SNAPSHOT_END = -2;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final List<Path> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final ScheduledExecutorService fsyncScheduler;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long nextSegmentNo;
+    private boolean dirty;
+    private int snapshotSegment = -1;
+
+    TaskLog(Path dir, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        try {
+            Files.createDirectories(dir);
+            try (var files = Files.list(dir)) {
+                segments.addAll(files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("open task log in %s failed", dir), e);
+        }
+        nextSegmentNo = segments.isEmpty() ? 0 : segmentNo(segments.get(segments.size() - 1)) + 1;
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            fsyncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "task-log-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fsyncScheduler.scheduleWithFixedDelay(this::force, fsyncIntervalMillis, fsyncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            fsyncScheduler = null;
+        }
+    }
+
+    // reads the records from the start of the last complete snapshot, and opens the last segment for appending after
+    // its last record. the segments before the snapshot are left by a crash before they were deleted, and a snapshot
+    // without an end by a crash while it was written, the records before it are replayed then. both are deleted
+    synchronized void replay(RecordHandler handler) {
+        // the first segments of the last complete snapshot and of a snapshot started after it
+        var snapshots = new int[]{0, -1};
+        for (int i = 0; i < segments.size(); i++) {
+            int segmentIndex = i;
+            readSegment(i, (type, payload) -> {
+                if (type == SNAPSHOT_START) {
+                    snapshots[1] = segmentIndex;
+                } else if (type == SNAPSHOT_END && snapshots[1] >= 0) {
+                    snapshots[0] = snapshots[1];
+                    snapshots[1] = -1;
+                }
+            });
+        }
+        if (snapshots[1] >= 0) {
+            log.warn("found a snapshot without an end in task log {}, it is dropped.", dir);
+            deleteSegments(snapshots[1], segments.size());
+        }
+        deleteSegments(0, snapshots[0]);
+        for (int i = 0; i < segments.size(); i++) {
+            var segment = readSegment(i, (type, payload) -> {
+                if (type != SNAPSHOT_START && type != SNAPSHOT_END) {
+                    handler.handle(type, payload);
+                }
+            });
+            if (i == segments.size() - 1) {
+                buffer = segment;
+            }
+        }
+        if (buffer == null) {
+            roll(segmentBytes);
+        }
+    }
+
+    // the segment is positioned after its last record
+    private MappedByteBuffer readSegment(int segmentIndex, RecordHandler handler) {
+        var segment = map(segments.get(segmentIndex));
+        while (true) {
+            int start = segment.position();
+            var record = readRecord(segment);
+            if (record == null) {
+                segment.position(start);
+                if (segment.remaining() >= Integer.BYTES && segment.getInt(start) != 0) {
+                    // a torn record, the bytes after it are cleared so that they are never taken as records
+                    clear(segment);
+                }
+                return segment;
+            }
+            handler.handle(record[0], ByteBuffer.wrap(record, 1, record.length - 1));
+        }
+    }
+
+    private static void clear(MappedByteBuffer segment) {
+        var zeros = new byte[Math.min(segment.remaining(), 64 * 1024)];
+        int start = segment.position();
+        while (segment.hasRemaining()) {
+            segment.put(zeros, 0, Math.min(zeros.length, segment.remaining()));
+        }
+        segment.position(start);
+    }
+
+    private byte[] readRecord(MappedByteBuffer segment) {
+        if (segment.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        int length = segment.getInt();
+        int checksum = segment.getInt();
+        if (length <= 0 || length > segment.remaining()) {
+            return null;
+        }
+        var record = new byte[length];
+        segment.get(record);
+        crc.reset();
+        crc.update(record);
+        if ((int) crc.getValue() != checksum) {
+            log.warn("found a torn record in task log {}, the records after it are dropped.", dir);
+            return null;
+        }
+        return record;
+    }
+
+    synchronized void append(byte type, byte[] payload) {
+        int length = payload.length + 1;
+        if (buffer.remaining() < HEADER_BYTES + length) {
+            roll(HEADER_BYTES + length);
+        }
+        crc.reset();
+        crc.update(type);
+        crc.update(payload);
+        buffer.putInt(length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(type);
+        buffer.put(payload);
+        dirty = true;
+    }
+
+    // called after the records of a repository operation are appended
+    synchronized void commit() {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            force();
+        }
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    // the records appended from now on replace all the records before them once the snapshot is ended
+    synchronized void startSnapshot() {
+        roll(segmentBytes);
+        snapshotSegment = segments.size() - 1;
+        append(SNAPSHOT_START, new byte[0]);
+    }
+
+    // the end of the snapshot is forced before the segments before it are deleted. a crash before the end is durable
+    // replays the segments before the snapshot, and a crash after it replays the snapshot only
+    synchronized void endSnapshot() {
+        append(SNAPSHOT_END, new byte[0]);
+        force();
+        deleteSegments(0, snapshotSegment);
+        snapshotSegment = -1;
+    }
+
+    private void deleteSegments(int fromIndex, int toIndex) {
+        var deleted = new ArrayList<>(segments.subList(fromIndex, toIndex));
+        segments.subList(fromIndex, toIndex).clear();
+        for (var segment : deleted) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format("delete task log segment %s failed", segment), e);
+            }
+        }
+    }
+
+    private void roll(int minBytes) {
+        if (buffer != null && fsyncPolicy != FsyncPolicy.NEVER) {
+            buffer.force();
+        }
+        var segment = dir.resolve(String.format("%020d%s", nextSegmentNo++, SEGMENT_SUFFIX));
+        segments.add(segment);
+        buffer = map(segment, minBytes);
+        dirty = false;
+    }
+
+    private MappedByteBuffer map(Path segment) {
+        return map(segment, segmentBytes);
+    }
+
+    // an existing segment is mapped as a whole, it is larger than segmentBytes if it holds a large record
+    private MappedByteBuffer map(Path segment, int minBytes) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            var bytes = Math.max(Math.max(segmentBytes, minBytes), channel.size());
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("map task log segment %s failed", segment), e);
+        }
+    }
+
+    private synchronized void force() {
+        if (dirty && buffer != null) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (fsyncScheduler != null) {
+            fsyncScheduler.shutdownNow();
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            force();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("close task log {} failed.", dir, e);
+        }
+    }
+
+    private static long segmentNo(Path segment) {
+        var name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    enum FsyncPolicy {
+        // forced at the end of every repository operation
+        ALWAYS,
+        // forced by a background thread, a crash of the machine loses the records of the last interval
+        INTERVAL,
+        // left to the operating system, only a crash of the process is survived
+        NEVER
+    }
+
+    interface RecordHandler {
+
+        void handle(byte type, ByteBuffer payload);
+    }
+}
@@ -0,0 +1,52 @@
+package com.brightliao.taskqueue;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.Duration;
+
+@Getter
+@Builder
+public class TaskOptions {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final TaskOptions DEFAULT = TaskOptions.builder().build();
+
+    // max tasks of this type running at the same time in one consumer, still bounded by the worker pool size
+    @Builder.Default
+    private final int maxConcurrency = Integer.MAX_VALUE;
+    // max tasks of this type started per second by one consumer, 0 means unlimited
+    @Builder.Default
+    private final double rateLimit = 0;
+    // tasks of a rate limited type allowed to start at once after being idle
+    @Builder.Default
+    private final int rateLimitBurst = 1;
+    // share of the worker pool relative to the other registered types when they all have tasks to run
+    @Builder.Default
+    private final int weight = 1;
+    // a failed task is retried until it has been attempted this many times, then moved to dead letter
+    @Builder.Default
+    private final int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    // the delay before the first retry, multiplied by retryBackoffMultiplier for each later retry
+    @Builder.Default
+    private final Duration retryBackoff = Duration.ofSeconds(1);
+    @Builder.Default
+    private final double retryBackoffMultiplier = 2;
+    @Builder.Default
+    private final Duration maxRetryBackoff = Duration.ofHours(1);
+    // a handler running longer is interrupted and its task fails, null means no timeout.
+    // for a batch handler, it is the timeout of the whole batch
+    private final Duration timeout;
+    // max tasks passed to a batch handler in one call, the limits above count a batch as one running task
+    @Builder.Default
+    private final int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    // how long claimed tasks wait for more tasks to fill their batch, 0 means running the batch at once
+    @Builder.Default
+    private final Duration batchLinger = Duration.ZERO;
+
+    public Duration retryBackoff(int attempts) {
+        var backoffMillis = retryBackoff.toMillis() * Math.pow(retryBackoffMultiplier, Math.max(attempts - 1, 0));
+        return Duration.ofMillis((long) Math.min(backoffMillis, maxRetryBackoff.toMillis()));
+    }
+}
@@ -0,0 +1,16 @@
+package com.brightliao.taskqueue;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.With;
+
+// the encoded arg of a task stored out of the tasks row, the encoding is like "json", "smile" or "smile+gzip"
+@Getter
+@AllArgsConstructor
+public class TaskPayload {
+
+    @With
+    private final Long taskId;
+    private final String encoding;
+    private final byte[] data;
+}
@@ -1,36 +1,306 @@
 package com.brightliao.taskqueue;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import static java.time.temporal.ChronoUnit.MILLIS;
+
+import com.brightliao.taskqueue.Task.TaskStatus;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class TaskQueue {
+public class TaskQueue implements InitializingBean, DisposableBean {
 
     public static final int HEARTBEAT_INTERVAL = 10 * 1000;  // in milliseconds
+    // the tasks of a node are released after its lease is not renewed for this long
+    public static final int LEASE_TIMEOUT = HEARTBEAT_INTERVAL * 3;  // in milliseconds
+    private static final int ZOMBIE_SWEEP_INTERVAL = HEARTBEAT_INTERVAL * 3;  // in milliseconds
+    private static final String ZOMBIE_SWEEPER_LOCK = "zombie_sweeper";
     private final TaskRepository taskRepository;
     private final TransactionTemplate transactionTemplate;
     private final ObjectMapper objectMapper;
     private ConcurrentLinkedDeque<Runnable> newTaskListeners = new ConcurrentLinkedDeque<>();
+    private ConcurrentLinkedDeque<LongConsumer> taskCancelledListeners = new ConcurrentLinkedDeque<>();
+    @Value("${task.groupCommit.windowMillis:0}")
+    private long groupCommitWindowMillis;
+    @Value("${task.groupCommit.maxBatchSize:100}")
+    private int groupCommitMaxBatchSize;
+    // an addTask call fails if its task is not committed in this time
+    @Value("${task.groupCommit.timeoutMillis:30000}")
+    private long groupCommitTimeoutMillis = 30000;
+    private TaskGroupCommitter groupCommitter;
+    @Value("${task.watermark.minPollMillis:0}")
+    private long watermarkMinPollMillis;
+    @Value("${task.watermark.maxPollMillis:1000}")
+    private long watermarkMaxPollMillis;
+    private TaskWatermarkPoller watermarkPoller;
+    private final TaskWatermarkBumper watermarkBumper = new TaskWatermarkBumper(this::touchNewTaskWatermark);
+    @Value("${task.priorityAgingStepMillis:60000}")
+    private long priorityAgingStepMillis = 60000;
+    // identifies this node as the owner of the tasks it claims, should be unique among the nodes
+    @Value("${task.nodeId:#{T(java.util.UUID).randomUUID().toString()}}")
+    private String nodeId = UUID.randomUUID().toString();
+    private volatile long leaseRenewedAtMillis;
+    // json or smile, the encoding of the args stored out of the tasks rows
+    @Value("${task.payload.encoding:json}")
+    private String payloadEncoding = TaskArgCodec.JSON;
+    // args larger than this in json are stored out of the tasks rows
+    @Value("${task.payload.externalThresholdBytes:4096}")
+    private int payloadExternalThresholdBytes = 4096;
+    @Value("${task.payload.compressThresholdBytes:4096}")
+    private int payloadCompressThresholdBytes = 4096;
+    private volatile TaskArgCodec argCodec;
+    // tasks are spread over the partitions by task type or partition key, 1 disables partitioning
+    @Value("${task.partitions.count:1}")
+    private int partitionCount = 1;
+    // comma separated partitions this node claims from first, one picked by the node id if not set
+    @Value("${task.partitions.preferred:}")
+    private String preferredPartitions = "";
+    private List<Integer> ownPartitions;
+    private List<Integer> otherPartitions;
+    @Autowired(required = false)
+    private TaskDedupProperties dedupProperties = new TaskDedupProperties();
+    private volatile TaskDedupCache dedupCache;
+    // the oldest events of a task are dropped beyond this
+    @Value("${task.events.maxPerTask:20}")
+    private int maxEventsPerTask = 20;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (groupCommitWindowMillis > 0) {
+            enableGroupCommit(Duration.ofMillis(groupCommitWindowMillis), groupCommitMaxBatchSize);
+        }
+        if (watermarkMinPollMillis > 0) {
+            enableWatermarkPolling(Duration.ofMillis(watermarkMinPollMillis), Duration.ofMillis(watermarkMaxPollMillis));
+        }
+        if (partitionCount > 1) {
+            enablePartitions(partitionCount, Arrays.stream(preferredPartitions.split(","))
+                    .filter(partition -> !partition.isBlank())
+                    .map(partition -> Integer.parseInt(partition.trim()))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    // concurrent addTask calls arriving within the window are inserted and committed together
+    public void enableGroupCommit(Duration window, int maxBatchSize) {
+        groupCommitter = new TaskGroupCommitter(this::insertTasks, window, maxBatchSize,
+                Duration.ofMillis(groupCommitTimeoutMillis));
+    }
+
+    // wakes up the consumers of this node when tasks are added on any node sharing the database
+    public void enableWatermarkPolling(Duration minInterval, Duration maxInterval) {
+        watermarkPoller = new TaskWatermarkPoller(taskRepository::findNewTaskWatermark, this::notifyNewTaskListeners,
+                minInterval, maxInterval);
+    }
+
+    // this node claims from the preferred partitions first, from the one picked by the node id if none is given
+    public void enablePartitions(int count, Collection<Integer> preferred) {
+        partitionCount = count;
+        var own = preferred.isEmpty() ? List.of(partitionOf(nodeId)) : List.copyOf(preferred);
+        own.stream().filter(partition -> partition < 0 || partition >= count).findAny().ifPresent(partition -> {
+            throw new RuntimeException(String.format("preferred partition %s is out of [0, %s)", partition, count));
+        });
+        otherPartitions = IntStream.range(0, count).boxed()
+                .filter(partition -> !own.contains(partition))
+                .collect(Collectors.toList());
+        ownPartitions = own;
+    }
+
+    @Override
+    public void destroy() {
+        if (groupCommitter != null) {
+            groupCommitter.stop();
+        }
+        if (watermarkPoller != null) {
+            watermarkPoller.stop();
+        }
+        try {
+            watermarkBumper.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        expireLease();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // created on first use, after the payload settings are injected
+    public TaskArgCodec getArgCodec() {
+        if (argCodec == null) {
+            argCodec = new TaskArgCodec(objectMapper, payloadEncoding, payloadExternalThresholdBytes,
+                    payloadCompressThresholdBytes);
+        }
+        return argCodec;
+    }
 
     public <T> void addTask(String taskType, T taskArg) {
+        addTask(taskType, taskArg, null, 0);
+    }
+
+    public <T> void addTask(String taskType, T taskArg, int priority) {
+        addTask(taskType, taskArg, null, priority);
+    }
+
+    public <T> void addTask(String taskType, T taskArg, Instant notBefore) {
+        addTask(taskType, taskArg, notBefore, 0);
+    }
+
+    // the task will not be run before notBefore, a null notBefore means now.
+    // higher priorities run first, see Task.schedule for how waiting tasks are aged.
+    public <T> void addTask(String taskType, T taskArg, Instant notBefore, int priority) {
+        addTask(taskType, taskArg, notBefore, priority, null);
+    }
+
+    // tasks of the same partition key go to the same partition, a null key routes the task by its type
+    public <T> void addTask(String taskType, T taskArg, Instant notBefore, int priority, String partitionKey) {
+        var task = newTask(taskType, taskArg);
+        if (partitionKey != null) {
+            task.setPartitionNo(partitionOf(partitionKey));
+        }
+        var dueAt = notBefore == null ? task.getCreatedAt() : LocalDateTime.ofInstant(notBefore, ZoneId.systemDefault());
+        task.schedule(dueAt, priority, Duration.ofMillis(priorityAgingStepMillis));
+        if (groupCommitter != null) {
+            groupCommitter.add(task);
+            return;
+        }
         transactionTemplate.executeWithoutResult(status -> {
-            try {
-                taskRepository.save(new Task(taskType, objectMapper.writer().writeValueAsString(taskArg)));
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+            var savedTask = taskRepository.save(task);
+            // the saved task is only needed for the id of the payload, most tasks have their arg inline
+            if (task.getPayload() != null) {
+                savePayloads(List.of(task), List.of(savedTask));
             }
         });
+        watermarkBumper.request();
+        notifyNewTaskListeners();
+    }
+
+    public <T> void addTasks(String taskType, Collection<T> taskArgs) {
+        if (taskArgs.isEmpty()) {
+            return;
+        }
+        var tasks = taskArgs.stream()
+                .map(taskArg -> newTask(taskType, taskArg))
+                .collect(Collectors.toList());
+        insertTasks(tasks);
+    }
+
+    // adds the task unless a task of the type with the same dedup key was added within the dedup window of the type,
+    // returns false if the task is a duplicate
+    public <T> boolean addUniqueTask(String taskType, T taskArg, String dedupKey) {
+        return addUniqueTasks(taskType, List.of(taskArg), arg -> dedupKey) == 1;
+    }
+
+    // skips the args whose dedup keys are taken or repeated, returns the number of tasks added.
+    // unique tasks do not go through the group commit, a task whose key is taken is skipped by the insert itself
+    public <T> int addUniqueTasks(String taskType, Collection<T> taskArgs, Function<T, String> dedupKeyOf) {
+        var nowMillis = System.currentTimeMillis();
+        var cache = getDedupCache();
+        var keys = new HashSet<String>();
+        var tasks = new ArrayList<Task>();
+        for (var taskArg : taskArgs) {
+            var dedupKey = dedupKeyOf.apply(taskArg);
+            if (dedupKey == null) {
+                throw new RuntimeException(String.format("dedup key of task %s should not be null", taskType));
+            }
+            if (keys.add(dedupKey) && !cache.contains(taskType, dedupKey, nowMillis)) {
+                var task = newTask(taskType, taskArg);
+                task.setDedupKey(dedupKey);
+                tasks.add(task);
+            }
+        }
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        // keys taken by tasks out of the window are released by the zombie sweep, not here
+        var added = transactionTemplate.execute(status -> {
+            var insertedTasks = taskRepository.insertUniqueTasks(tasks);
+            savePayloads(insertedTasks, insertedTasks);
+            return insertedTasks;
+        });
+        var window = dedupProperties.windowOf(taskType);
+        added.forEach(task -> cache.add(taskType, task.getDedupKey(), nowMillis + window.toMillis()));
+        if (!added.isEmpty()) {
+            watermarkBumper.request();
+            notifyNewTaskListeners();
+        }
+        return added.size();
+    }
+
+    // created on first use, after the dedup properties are injected
+    private TaskDedupCache getDedupCache() {
+        if (dedupCache == null) {
+            dedupCache = new TaskDedupCache(dedupProperties.getCacheSize());
+        }
+        return dedupCache;
+    }
+
+    private void insertTasks(List<Task> tasks) {
+        transactionTemplate.executeWithoutResult(status -> {
+            var savedTasks = taskRepository.saveAll(tasks);
+            savePayloads(tasks, savedTasks);
+        });
+        watermarkBumper.request();
+        notifyNewTaskListeners();
+    }
+
+    private void touchNewTaskWatermark() {
+        transactionTemplate.executeWithoutResult(status -> taskRepository.touchNewTaskWatermark());
+    }
+
+    private Task newTask(String taskType, Object taskArg) {
+        var task = new Task(taskType, null);
+        task.setPartitionNo(partitionOf(taskType));
+        getArgCodec().writeArg(task, taskArg);
+        return task;
+    }
+
+    // string hash codes are the same on every node, so all nodes route a key to the same partition
+    int partitionOf(String partitionKey) {
+        return Math.floorMod(partitionKey.hashCode(), partitionCount);
+    }
+
+    // saved tasks are in the order of the tasks, but may be other instances not carrying the payloads
+    private void savePayloads(List<Task> tasks, List<Task> savedTasks) {
+        var payloads = new ArrayList<TaskPayload>();
+        for (int i = 0; i < tasks.size(); i++) {
+            if (tasks.get(i).getPayload() != null) {
+                payloads.add(tasks.get(i).getPayload().withTaskId(savedTasks.get(i).getId()));
+            }
+        }
+        if (!payloads.isEmpty()) {
+            taskRepository.savePayloads(payloads);
+        }
+    }
+
+    private void notifyNewTaskListeners() {
         newTaskListeners.forEach(listener -> {
             try {
                 listener.run();
@@ -41,15 +311,55 @@ public class TaskQueue {
     }
 
     public List<Task> popTasks(int tasksToFetchPerTime) {
-        return transactionTemplate.execute(status -> {
-            var tasks = taskRepository.findNewTasks(tasksToFetchPerTime);
-            if (tasks.isEmpty()) {
-                return tasks;
+        return popTasks(tasksToFetchPerTime, Set.of());
+    }
+
+    public List<Task> popTasks(int tasksToFetchPerTime, Collection<String> excludedTaskTypes) {
+        var tasks = transactionTemplate.execute(status -> {
+            // the lease is in place before any task is owned by this node
+            if (System.currentTimeMillis() - leaseRenewedAtMillis >= HEARTBEAT_INTERVAL) {
+                renewLease();
             }
-            tasks.forEach(Task::markStarted);
-            tasks = taskRepository.saveAll(tasks);
-            return tasks;
+            var claimed = claimTasks(tasksToFetchPerTime, excludedTaskTypes);
+            readPayloads(claimed);
+            return claimed;
         });
+        if (watermarkPoller != null && !tasks.isEmpty()) {
+            watermarkPoller.onActivity();
+        }
+        return tasks;
+    }
+
+    // claims from the partitions of this node first, and steals from the other partitions to fill up the claim
+    private List<Task> claimTasks(int maxCount, Collection<String> excludedTaskTypes) {
+        if (partitionCount <= 1) {
+            return taskRepository.claimNewTasks(maxCount, excludedTaskTypes, nodeId);
+        }
+        var claimed = new ArrayList<>(taskRepository.claimNewTasks(maxCount, excludedTaskTypes, nodeId, ownPartitions));
+        if (claimed.size() < maxCount && !otherPartitions.isEmpty()) {
+            claimed.addAll(taskRepository.claimNewTasks(maxCount - claimed.size(), excludedTaskTypes, nodeId,
+                    otherPartitions));
+        }
+        return claimed;
+    }
+
+    private void readPayloads(List<Task> tasks) {
+        var ids = tasks.stream()
+                .filter(task -> task.getTaskArg() == null)
+                .map(Task::getId)
+                .collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return;
+        }
+        var payloads = taskRepository.findPayloads(ids).stream()
+                .collect(Collectors.toMap(TaskPayload::getTaskId, payload -> payload));
+        tasks.stream()
+                .filter(task -> payloads.containsKey(task.getId()))
+                .forEach(task -> task.setPayload(payloads.get(task.getId())));
+    }
+
+    public LocalDateTime findNextDueAt(Collection<String> excludedTaskTypes) {
+        return taskRepository.findNextDueAt(excludedTaskTypes);
     }
 
     public void markSucceeded(Task task) {
@@ -59,13 +369,67 @@ public class TaskQueue {
         });
     }
 
+    public void markRetrying(Task task, Exception e, Duration backoff) {
+        transactionTemplate.executeWithoutResult(status -> {
+            task.markRetrying(e, LocalDateTime.now().plus(backoff), Duration.ofMillis(priorityAgingStepMillis));
+            taskRepository.save(task);
+            taskRepository.addEvents(List.of(failureEvent(task)), maxEventsPerTask);
+        });
+    }
+
+    public void markDeadLetter(Task task, Exception e) {
+        transactionTemplate.executeWithoutResult(status -> {
+            task.markDeadLetter(e);
+            taskRepository.save(task);
+            taskRepository.addEvents(List.of(failureEvent(task)), maxEventsPerTask);
+        });
+    }
+
+    // saves the results of a batch in one transaction, a null failure means the task succeeded, and a failed task
+    // is retried after its backoff while it has attempts left
+    public void markFinished(List<Task> tasks, List<Exception> failures, Function<Task, Duration> retryBackoff) {
+        transactionTemplate.executeWithoutResult(status -> {
+            var priorityAgingStep = Duration.ofMillis(priorityAgingStepMillis);
+            var events = new ArrayList<TaskEvent>();
+            for (int i = 0; i < tasks.size(); i++) {
+                var task = tasks.get(i);
+                var failure = failures.get(i);
+                if (failure == null) {
+                    task.markSucceeded();
+                } else if (task.hasAttemptsLeft()) {
+                    task.markRetrying(failure, LocalDateTime.now().plus(retryBackoff.apply(task)), priorityAgingStep);
+                } else {
+                    task.markDeadLetter(failure);
+                }
+                if (failure != null) {
+                    events.add(failureEvent(task));
+                }
+            }
+            taskRepository.saveAll(tasks);
+            taskRepository.addEvents(events, maxEventsPerTask);
+        });
+    }
+
     public void markFailed(Task task, Exception e) {
         transactionTemplate.executeWithoutResult(status -> {
             task.markFailed(e);
             taskRepository.save(task);
+            taskRepository.addEvents(List.of(failureEvent(task)), maxEventsPerTask);
         });
     }
 
+    // called after the task is marked, the event records the status the failure moved it to
+    private TaskEvent failureEvent(Task task) {
+        var type = task.getStatus() == TaskStatus.PENDING ? TaskEvent.Type.RETRIED
+                : task.getStatus() == TaskStatus.DEAD_LETTER ? TaskEvent.Type.DEAD_LETTER : TaskEvent.Type.FAILED;
+        return new TaskEvent(null, task.getId(), type, task.getMessage(), task.getHeartbeatAt());
+    }
+
+    // the failures, retries and zombie recoveries of the task, oldest first. only the last error is kept in the task
+    public List<TaskEvent> getEvents(long taskId) {
+        return taskRepository.findEvents(taskId);
+    }
+
     public void onNewTask(Runnable listener) {
         this.newTaskListeners.add(listener);
     }
@@ -77,19 +441,103 @@ public class TaskQueue {
         });
     }
 
-    @Scheduled(fixedRate = HEARTBEAT_INTERVAL * 3, initialDelay = HEARTBEAT_INTERVAL * 3)
+    public void markRunning(List<Task> tasks) {
+        transactionTemplate.executeWithoutResult(status -> {
+            tasks.forEach(Task::markRunning);
+            taskRepository.saveAll(tasks);
+        });
+    }
+
+    // only the node holding the sweeper lock sweeps, the lock is held for two intervals so that it stays
+    // with one node as long as the node is alive
+    @Scheduled(fixedRate = ZOMBIE_SWEEP_INTERVAL, initialDelay = ZOMBIE_SWEEP_INTERVAL)
     public void cleanZombieTasks() {
         transactionTemplate.executeWithoutResult(status -> {
+            var now = LocalDateTime.now();
+            if (!taskRepository.tryAcquireLock(ZOMBIE_SWEEPER_LOCK, nodeId, now,
+                    now.plus(ZOMBIE_SWEEP_INTERVAL * 2, MILLIS))) {
+                log.debug("zombie sweeper lock is held by another node, skip cleaning zombie tasks.");
+                return;
+            }
             log.info("start to clean zombie tasks.");
-            int cleanedCount = taskRepository.cleanZombieTasks(HEARTBEAT_INTERVAL * 3);
+            var message = String.format("Clean zombie task at [%s].",
+                    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").format(now));
+            int cleanedCount = 0;
+            for (var expiredNodeId : taskRepository.findExpiredConsumers(now)) {
+                cleanedCount += taskRepository.releaseTasksOfOwner(expiredNodeId, now, message, maxEventsPerTask);
+                taskRepository.deleteConsumer(expiredNodeId, now);
+                log.info("lease of node {} expired, released its tasks.", expiredNodeId);
+            }
+            cleanedCount += taskRepository.cleanZombieTasks(LEASE_TIMEOUT, maxEventsPerTask);
+            if (cleanedCount > 0) {
+                taskRepository.touchNewTaskWatermark();
+            }
             log.info("clean {} zombie tasks.", cleanedCount);
+            int releasedCount = releaseDedupKeys(now);
+            log.info("released {} dedup keys out of their windows.", releasedCount);
         });
     }
 
-    public void heartbeat(ConcurrentLinkedDeque<Task> runningTasks) {
-        runningTasks.forEach(Task::heartbeat);
+    // keys are released here instead of when adding unique tasks, so that adding them takes a single insert. a key is
+    // taken for its window and at most one sweep interval longer
+    private int releaseDedupKeys(LocalDateTime now) {
+        var windowByType = dedupProperties.getWindowByType();
+        int releasedCount = 0;
+        for (var window : windowByType.entrySet()) {
+            releasedCount += taskRepository.releaseDedupKeys(List.of(window.getKey()), List.of(),
+                    now.minus(window.getValue()));
+        }
+        releasedCount += taskRepository.releaseDedupKeys(List.of(), windowByType.keySet(),
+                now.minus(dedupProperties.getWindow()));
+        return releasedCount;
+    }
+
+    // renews the lease of this node, which keeps all the tasks it owns alive.
+    // returns the ids of the tasks cancelled, they should be stopped
+    public List<Long> heartbeat(Collection<Task> runningTasks) {
+        var ids = runningTasks.stream().map(Task::getId).collect(Collectors.toList());
+        return transactionTemplate.execute(status -> {
+            renewLease();
+            return ids.isEmpty() ? List.<Long>of() : taskRepository.findCancelledTaskIds(ids);
+        });
+    }
+
+    private void renewLease() {
+        var now = System.currentTimeMillis();
+        taskRepository.renewConsumerLease(nodeId, LocalDateTime.now().plus(LEASE_TIMEOUT, MILLIS));
+        leaseRenewedAtMillis = now;
+    }
+
+    // tasks left by this node are released by the next sweep instead of waiting for the lease timeout
+    private void expireLease() {
+        try {
+            transactionTemplate.executeWithoutResult(status ->
+                    taskRepository.renewConsumerLease(nodeId, LocalDateTime.now()));
+        } catch (Exception e) {
+            log.warn("expire lease of node {} failed.", nodeId, e);
+        }
+    }
+
+    // gives claimed tasks back to the queue without waiting for the zombie sweep, a task not running yet
+    // does not count as an attempt
+    public void releaseTasks(Collection<Task> tasks) {
+        var ids = tasks.stream().map(Task::getId).collect(Collectors.toList());
         transactionTemplate.executeWithoutResult(status -> {
-            taskRepository.saveAll(new ArrayList<>(runningTasks));
+            taskRepository.releaseTasks(ids);
+            taskRepository.touchNewTaskWatermark();
         });
     }
+
+    // a pending task will not be run, a running task is notified through TaskContext.isCancelled
+    public boolean cancel(long taskId) {
+        var cancelled = transactionTemplate.execute(status -> taskRepository.cancelTask(taskId, LocalDateTime.now()) > 0);
+        if (cancelled) {
+            taskCancelledListeners.forEach(listener -> listener.accept(taskId));
+        }
+        return cancelled;
+    }
+
+    public void onTaskCancelled(LongConsumer listener) {
+        taskCancelledListeners.add(listener);
+    }
 }
@@ -3,53 +3,165 @@ package com.brightliao.taskqueue;
 import static com.brightliao.taskqueue.TaskQueue.HEARTBEAT_INTERVAL;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
-public class TaskQueueConsumer implements InitializingBean {
+public class TaskQueueConsumer implements InitializingBean, DisposableBean {
+
+    private static final long MIN_WAIT_MILLIS = 10;
 
     private final TaskQueue queue;
+    // the max number of tasks to claim at a time, also bounds the local prefetch buffer
     private final int tasksToFetchPerTime;
-    private final Map<String, TaskHandler> registeredTasks = new HashMap<>();
+    private final int workerPoolSize;
+    @Value("${task.minTasksToFetchPerTime:1}")
+    private int minTasksToFetchPerTime = 1;
+    @Value("${task.drainTimeoutMillis:20000}")
+    private long drainTimeoutMillis = 20000;
+    // max tasks of async handlers whose stages are not completed yet, they do not take workers
+    @Value("${task.maxInFlightAsyncTasks:10000}")
+    private int maxInFlightAsyncTasks = 10000;
+    // run handlers on virtual threads, falls back to platform threads on a jdk without them
+    @Value("${task.virtualThreads:false}")
+    private boolean virtualThreads = false;
+    private final Map<String, RegisteredTask> registeredTasks = new ConcurrentHashMap<>();
     private final Object consumerThreadCoordinator = new Object();
-    private ConcurrentLinkedDeque<Task> runningTasks = new ConcurrentLinkedDeque<>();
+    private final Object dispatchLock = new Object();
+    // tasks prefetched by this consumer and waiting for a free worker or a free slot of its task type
+    private final Deque<TaskExecution> waitingTasks = new ArrayDeque<>();
+    private AdaptiveFetchSize fetchSize;
+    private int busyWorkers = 0;
+    private int inFlightAsyncTasks = 0;
+    private volatile boolean hasAsyncTasks = false;
+    // claimed tasks by id, including the waiting ones
+    private final Map<Long, TaskExecution> runningTasks = new ConcurrentHashMap<>();
     private AtomicBoolean isWaiting = new AtomicBoolean(true);
-    private boolean isStopping = false;
+    private volatile boolean isStopping = false;
     private Thread consumerThread;
+    private ExecutorService workerPool;
+    private ScheduledExecutorService timeoutScheduler;
 
-    public TaskQueueConsumer(TaskQueue queue, @Value("${task.tasksToFetchPerTime}") int tasksToFetchPerTime) {
+    public TaskQueueConsumer(TaskQueue queue, @Value("${task.tasksToFetchPerTime}") int tasksToFetchPerTime,
+            @Value("${task.workerPoolSize}") int workerPoolSize) {
         this.queue = queue;
         this.tasksToFetchPerTime = tasksToFetchPerTime;
+        this.workerPoolSize = workerPoolSize;
         queue.onNewTask(this::notifyNewTask);
+        queue.onTaskCancelled(this::cancelRunningTask);
     }
 
     public void registerTask(String taskType, TaskHandler taskHandler) {
-        if (registeredTasks.containsKey(taskType)) {
+        registerTask(taskType, taskHandler, TaskOptions.DEFAULT);
+    }
+
+    public void registerTask(String taskType, TaskHandler taskHandler, TaskOptions options) {
+        register(taskType, new RegisteredTask((task, context) -> taskHandler.run(argOf(task), context),
+                null, null, options));
+    }
+
+    public <T> void registerTask(String taskType, Class<T> argType, TypedTaskHandler<T> typedHandler) {
+        registerTask(taskType, argType, typedHandler, TaskOptions.DEFAULT);
+    }
+
+    public <T> void registerTask(String taskType, Class<T> argType, TypedTaskHandler<T> typedHandler,
+            TaskOptions options) {
+        var reader = queue.getArgCodec().readerFor(argType);
+        register(taskType, new RegisteredTask((task, context) -> {
+            T arg;
+            try {
+                arg = queue.getArgCodec().readArg(task, reader);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("read arg of task %s failed: %s", taskType, e.getMessage()), e);
+            }
+            typedHandler.run(arg, context);
+        }, null, null, options));
+    }
+
+    private String argOf(Task task) {
+        return queue.getArgCodec().readArg(task);
+    }
+
+    public void registerBatchTask(String taskType, BatchTaskHandler batchHandler) {
+        registerBatchTask(taskType, batchHandler, TaskOptions.DEFAULT);
+    }
+
+    // claimed tasks of the type are grouped into batches of up to maxBatchSize tasks, a partial batch is run
+    // after the oldest task in it has waited for batchLinger
+    public void registerBatchTask(String taskType, BatchTaskHandler batchHandler, TaskOptions options) {
+        register(taskType, new RegisteredTask(null, batchHandler, null, options));
+    }
+
+    public void registerAsyncTask(String taskType, AsyncTaskHandler asyncHandler) {
+        registerAsyncTask(taskType, asyncHandler, TaskOptions.DEFAULT);
+    }
+
+    public void registerAsyncTask(String taskType, AsyncTaskHandler asyncHandler, TaskOptions options) {
+        register(taskType, new RegisteredTask(null, null, asyncHandler, options));
+        hasAsyncTasks = true;
+    }
+
+    private void register(String taskType, RegisteredTask registeredTask) {
+        if (registeredTasks.putIfAbsent(taskType, registeredTask) != null) {
             throw new RuntimeException("task has been registered already: " + taskType);
         }
-        registeredTasks.put(taskType, taskHandler);
     }
 
     public void start() {
+        fetchSize = new AdaptiveFetchSize(workerPoolSize, minTasksToFetchPerTime, tasksToFetchPerTime);
+        workerPool = newWorkerPool();
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var timeoutThread = new Thread(runnable, "task-timeout");
+            timeoutThread.setDaemon(true);
+            return timeoutThread;
+        });
         consumerThread = new Thread(() -> {
             while (!isStopping) {
+                int tasksToFetch = tasksToFetch();
+                if (tasksToFetch <= 0) {
+                    waitForFreeWorkers();
+                    continue;
+                }
                 log.info("start to find new tasks");
-                var tasks = queue.popTasks(tasksToFetchPerTime);
+                var claimStartedAt = System.nanoTime();
+                var throttledTaskTypes = throttledTaskTypes();
+                var tasks = claimTasks(tasksToFetch, throttledTaskTypes);
+                fetchSize.onTasksClaimed(millisSince(claimStartedAt));
                 if (tasks.isEmpty()) {
                     try {
+                        var wakeUpAt = nextWakeUpAt(throttledTaskTypes);
                         log.info("no new tasks found, will wait for next round to fetch tasks.");
                         synchronized (consumerThreadCoordinator) {
                             isWaiting.set(true);
-                            consumerThreadCoordinator.wait();
+                            waitUntil(wakeUpAt);
                         }
                         continue;
                     } catch (InterruptedException e) {
@@ -59,32 +171,485 @@ public class TaskQueueConsumer implements InitializingBean {
                 }
                 isWaiting.set(false);
                 log.info("found {} tasks.", tasks.size());
-                runningTasks.addAll(tasks);
-                for (Task task : tasks) {
-                    try {
-                        log.info("start to run task {}(id={}).", task.getType(), task.getId());
-                        queue.markRunning(task);
-                        final TaskHandler taskHandler = registeredTasks.get(task.getType());
-                        if (taskHandler == null) {
-                            throw new RuntimeException("task not registered for type: " + task.getTaskType());
-                        }
-                        taskHandler.run(task.getArg());
-                        queue.markSucceeded(task);
-                        log.info("run task {}(id={}) succeeded.", task.getType(), task.getId());
-                    } catch (Exception e) {
-                        queue.markFailed(task, e);
-                        log.warn("run task {}(id={}) failed.", task.getType(), task.getId(), e);
-                    } finally {
-                        runningTasks.remove(task);
-                    }
-                }
+                dispatch(tasks);
             }
-        });
+        }, "task-consumer");
         consumerThread.setDaemon(false);
         consumerThread.start();
     }
 
-    @Scheduled(fixedRate = 10 * 1000)
+    // bounded by busyWorkers instead of the thread count, so that a timed out handler stuck in its thread
+    // does not take a worker slot away
+    private ExecutorService newWorkerPool() {
+        if (virtualThreads) {
+            try {
+                // looked up by reflection, as the code is compiled for jdks without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("virtual threads are not supported by this jdk, will run tasks on platform threads.");
+            }
+        }
+        var workerCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            var workerThread = new Thread(runnable, "task-worker-" + workerCount.incrementAndGet());
+            workerThread.setDaemon(false);
+            return workerThread;
+        });
+    }
+
+    // types over their weighted share are skipped by a first claim, and only get the tasks no other types want
+    private List<Task> claimTasks(int tasksToFetch, Set<String> throttledTaskTypes) {
+        var overSharedTaskTypes = overSharedTaskTypes();
+        var tasks = new ArrayList<Task>();
+        if (!overSharedTaskTypes.isEmpty()) {
+            var excludedTaskTypes = new HashSet<>(throttledTaskTypes);
+            excludedTaskTypes.addAll(overSharedTaskTypes);
+            tasks.addAll(queue.popTasks(tasksToFetch, excludedTaskTypes));
+        }
+        if (tasks.size() < tasksToFetch) {
+            tasks.addAll(queue.popTasks(tasksToFetch - tasks.size(), throttledTaskTypes));
+        }
+        return tasks;
+    }
+
+    // types at their concurrency limit or out of their rate limit, tasks claimed for them would only wait locally
+    private Set<String> throttledTaskTypes() {
+        synchronized (dispatchLock) {
+            return registeredTasks.entrySet().stream()
+                    .filter(entry -> entry.getValue().isThrottled())
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    private Set<String> overSharedTaskTypes() {
+        var totalWeight = registeredTasks.values().stream().mapToInt(task -> task.options.getWeight()).sum();
+        synchronized (dispatchLock) {
+            return registeredTasks.entrySet().stream()
+                    .filter(entry -> entry.getValue().isOverShared(workerPoolSize, totalWeight))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    // the next time a claim may find tasks if no new task is added, null if there is no such time
+    private LocalDateTime nextWakeUpAt(Set<String> throttledTaskTypes) {
+        var wakeUpAt = queue.findNextDueAt(throttledTaskTypes);
+        for (String taskType : throttledTaskTypes) {
+            var rateLimiter = registeredTasks.get(taskType).rateLimiter;
+            if (rateLimiter != null && !rateLimiter.hasPermit()) {
+                var permitAt = LocalDateTime.now().plusNanos(rateLimiter.nanosUntilPermit());
+                if (wakeUpAt == null || permitAt.isBefore(wakeUpAt)) {
+                    wakeUpAt = permitAt;
+                }
+            }
+        }
+        return wakeUpAt;
+    }
+
+    // must be called with consumerThreadCoordinator held, wait until notified if there is no wake up time
+    private void waitUntil(LocalDateTime wakeUpAt) throws InterruptedException {
+        if (wakeUpAt == null) {
+            consumerThreadCoordinator.wait();
+            return;
+        }
+        var millisToWait = Duration.between(LocalDateTime.now(), wakeUpAt).toMillis();
+        // tasks already due but not claimed are likely being claimed by others, back off a little
+        consumerThreadCoordinator.wait(Math.max(millisToWait, MIN_WAIT_MILLIS));
+    }
+
+    private int tasksToFetch() {
+        synchronized (dispatchLock) {
+            var freeSlots = workerPoolSize - busyWorkers + (hasAsyncTasks ? maxInFlightAsyncTasks - inFlightAsyncTasks : 0);
+            return fetchSize.next(freeSlots, waitingRuns());
+        }
+    }
+
+    // must be called with dispatchLock held, counts a full batch as one run, and a partial batch not at all, so that
+    // the consumer claims on to fill it. tasks of types at their concurrency limit are not counted either, they cannot
+    // take a free worker, and their types are throttled at claim time already
+    private int waitingRuns() {
+        int runs = 0;
+        var batchSizes = new HashMap<RegisteredTask, Integer>();
+        for (var execution : waitingTasks) {
+            if (execution.registeredTask != null && execution.registeredTask.isFull()) {
+                continue;
+            }
+            if (execution.isBatched()) {
+                batchSizes.merge(execution.registeredTask, 1, Integer::sum);
+            } else {
+                runs++;
+            }
+        }
+        for (var entry : batchSizes.entrySet()) {
+            runs += entry.getValue() / entry.getKey().options.getMaxBatchSize();
+        }
+        return runs;
+    }
+
+    private void waitForFreeWorkers() {
+        try {
+            synchronized (consumerThreadCoordinator) {
+                if (tasksToFetch() <= 0) {
+                    consumerThreadCoordinator.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Thread interrupted unexpectedly, will continue to run new tasks.", e);
+        }
+    }
+
+    private void dispatch(List<Task> tasks) {
+        synchronized (dispatchLock) {
+            if (!isStopping) {
+                tasks.forEach(task -> {
+                    var registeredTask = registeredTasks.get(task.getType());
+                    if (registeredTask != null) {
+                        registeredTask.onClaimed();
+                    }
+                    var execution = new TaskExecution(task, registeredTask);
+                    runningTasks.put(task.getId(), execution);
+                    waitingTasks.add(execution);
+                });
+                dispatchWaitingTasks();
+                return;
+            }
+        }
+        // claimed by a claim still in flight when stop() gave the waiting tasks back, so they are given back here
+        releaseTasks(tasks);
+    }
+
+    // must be called with dispatchLock held
+    private void dispatchWaitingTasks() {
+        if (isStopping) {
+            return;
+        }
+        var waitingBatches = waitingBatches();
+        var batched = new HashSet<TaskExecution>();
+        var iterator = waitingTasks.iterator();
+        while (iterator.hasNext() && (busyWorkers < workerPoolSize || hasAsyncCapacity())) {
+            var execution = iterator.next();
+            var registeredTask = execution.registeredTask;
+            if (batched.contains(execution) || (registeredTask != null && registeredTask.isFull())) {
+                continue;
+            }
+            if (execution.isAsync()) {
+                if (hasAsyncCapacity()) {
+                    iterator.remove();
+                    inFlightAsyncTasks++;
+                    registeredTask.runningCount++;
+                    workerPool.execute(() -> startAsyncTask(execution));
+                }
+                continue;
+            }
+            if (busyWorkers >= workerPoolSize) {
+                continue;
+            }
+            if (execution.isBatched()) {
+                var batch = takeBatch(waitingBatches.get(registeredTask));
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                batched.addAll(batch);
+                busyWorkers++;
+                registeredTask.runningCount++;
+                workerPool.execute(() -> runBatch(new TaskBatch(registeredTask, batch)));
+                continue;
+            }
+            iterator.remove();
+            busyWorkers++;
+            if (registeredTask != null) {
+                registeredTask.runningCount++;
+            }
+            workerPool.execute(() -> runTask(execution));
+        }
+        if (!batched.isEmpty()) {
+            waitingTasks.removeIf(batched::contains);
+        }
+    }
+
+    // must be called with dispatchLock held
+    private boolean hasAsyncCapacity() {
+        return hasAsyncTasks && inFlightAsyncTasks < maxInFlightAsyncTasks;
+    }
+
+    // must be called with dispatchLock held, waiting tasks of batch types grouped by type in the waiting order
+    private Map<RegisteredTask, List<TaskExecution>> waitingBatches() {
+        var waitingBatches = new HashMap<RegisteredTask, List<TaskExecution>>();
+        for (var execution : waitingTasks) {
+            if (execution.isBatched()) {
+                waitingBatches.computeIfAbsent(execution.registeredTask, key -> new ArrayList<>()).add(execution);
+            }
+        }
+        return waitingBatches;
+    }
+
+    // must be called with dispatchLock held, takes a full batch, or a partial one whose oldest task has lingered
+    // long enough, returns an empty list and schedules a dispatch at the end of the linger otherwise
+    private List<TaskExecution> takeBatch(List<TaskExecution> waiting) {
+        var registeredTask = waiting.get(0).registeredTask;
+        var lingerNanos = registeredTask.options.getBatchLinger().toNanos();
+        var lingeredNanos = System.nanoTime() - waiting.get(0).claimedAtNanos;
+        if (waiting.size() < registeredTask.options.getMaxBatchSize() && lingeredNanos < lingerNanos) {
+            scheduleLingerDispatch(registeredTask, lingerNanos - lingeredNanos);
+            return List.of();
+        }
+        var taken = waiting.subList(0, Math.min(waiting.size(), registeredTask.options.getMaxBatchSize()));
+        var batch = new ArrayList<>(taken);
+        taken.clear();
+        return batch;
+    }
+
+    // must be called with dispatchLock held
+    private void scheduleLingerDispatch(RegisteredTask registeredTask, long delayNanos) {
+        if (registeredTask.lingerDispatch != null) {
+            return;
+        }
+        registeredTask.lingerDispatch = timeoutScheduler.schedule(() -> {
+            synchronized (dispatchLock) {
+                registeredTask.lingerDispatch = null;
+                dispatchWaitingTasks();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void runTask(TaskExecution execution) {
+        var task = execution.task;
+        var registeredTask = execution.registeredTask;
+        Exception failure = null;
+        try {
+            execution.thread = Thread.currentThread();
+            if (!execution.context.isCancelled()) {
+                log.info("start to run task {}(id={}).", task.getType(), task.getId());
+                if (registeredTask != null) {
+                    task.setMaxAttempts(registeredTask.options.getMaxAttempts());
+                    scheduleTimeout(execution, registeredTask.options.getTimeout());
+                }
+                queue.markRunning(task);
+                if (registeredTask == null) {
+                    throw new RuntimeException("task not registered for type: " + task.getTaskType());
+                }
+                var taskStartedAt = System.nanoTime();
+                registeredTask.runner.run(task, execution.context);
+                fetchSize.onTaskFinished(millisSince(taskStartedAt));
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        if (execution.finished.compareAndSet(false, true)) {
+            completeTask(execution, failure);
+        } else {
+            log.warn("task {}(id={}) returned after it timed out.", task.getType(), task.getId());
+        }
+        // clear the interruption of a timeout racing with the completion, the thread is going back to the pool
+        Thread.interrupted();
+    }
+
+    // the worker only starts the task, it is completed by the callback of the stage returned by the handler
+    private void startAsyncTask(TaskExecution execution) {
+        var task = execution.task;
+        var registeredTask = execution.registeredTask;
+        try {
+            if (execution.context.isCancelled()) {
+                finishTask(execution, null);
+                return;
+            }
+            log.info("start to run async task {}(id={}).", task.getType(), task.getId());
+            task.setMaxAttempts(registeredTask.options.getMaxAttempts());
+            scheduleTimeout(execution, registeredTask.options.getTimeout());
+            queue.markRunning(task);
+            execution.future = registeredTask.asyncHandler.run(argOf(task), execution.context)
+                    .toCompletableFuture();
+            execution.future.whenComplete((result, e) -> finishTask(execution, e == null ? null : toException(e)));
+        } catch (Exception e) {
+            finishTask(execution, e);
+        }
+    }
+
+    private void finishTask(TaskExecution execution, Exception failure) {
+        if (execution.finished.compareAndSet(false, true)) {
+            completeTask(execution, failure);
+        } else {
+            log.warn("task {}(id={}) completed after it timed out.", execution.task.getType(), execution.task.getId());
+        }
+    }
+
+    private static Exception toException(Throwable e) {
+        var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+    }
+
+    private void runBatch(TaskBatch batch) {
+        var registeredTask = batch.registeredTask;
+        batch.thread = Thread.currentThread();
+        batch.executions.forEach(execution -> execution.thread = batch.thread);
+        batch.running = batch.executions.stream()
+                .filter(execution -> !execution.context.isCancelled())
+                .collect(Collectors.toList());
+        var result = new BatchResult(batch.running.stream()
+                .map(execution -> execution.context)
+                .collect(Collectors.toList()));
+        Exception failure = null;
+        try {
+            if (!batch.running.isEmpty()) {
+                var tasks = tasksOf(batch.running);
+                log.info("start to run a batch of {} tasks {}.", tasks.size(), tasks.get(0).getType());
+                tasks.forEach(task -> task.setMaxAttempts(registeredTask.options.getMaxAttempts()));
+                scheduleTimeout(batch, registeredTask.options.getTimeout());
+                queue.markRunning(tasks);
+                var batchStartedAt = System.nanoTime();
+                registeredTask.batchHandler.run(
+                        tasks.stream().map(this::argOf).collect(Collectors.toList()), result);
+                fetchSize.onTaskFinished(millisSince(batchStartedAt));
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        if (batch.finished.compareAndSet(false, true)) {
+            completeBatch(batch, result, failure);
+        } else {
+            log.warn("a batch of {} tasks returned after it timed out.", batch.executions.size());
+        }
+        Thread.interrupted();
+    }
+
+    private void scheduleTimeout(TaskBatch batch, Duration timeout) {
+        if (timeout == null) {
+            return;
+        }
+        batch.timeout = timeoutScheduler.schedule(() -> {
+            if (batch.finished.compareAndSet(false, true)) {
+                log.warn("a batch of {} tasks timed out after {}, interrupt it.", batch.executions.size(), timeout);
+                batch.thread.interrupt();
+                completeBatch(batch, null, new RuntimeException(String.format("batch timed out after %s", timeout)));
+            }
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // called once for each batch, the results are saved in one transaction. a failure of the batch fails all the
+    // tasks, and tasks released on stopping or cancelled are left as they are
+    private void completeBatch(TaskBatch batch, BatchResult result, Exception failure) {
+        try {
+            if (batch.timeout != null) {
+                batch.timeout.cancel(false);
+            }
+            var tasks = new ArrayList<Task>();
+            var failures = new ArrayList<Exception>();
+            for (int i = 0; i < batch.running.size(); i++) {
+                var execution = batch.running.get(i);
+                if (!execution.finished.compareAndSet(false, true)) {
+                    continue;
+                }
+                if (execution.context.isCancelled()) {
+                    log.info("task {}(id={}) is cancelled.", execution.task.getType(), execution.task.getId());
+                    continue;
+                }
+                tasks.add(execution.task);
+                failures.add(failure != null ? failure : result.getFailure(i));
+            }
+            if (!tasks.isEmpty()) {
+                var options = batch.registeredTask.options;
+                queue.markFinished(tasks, failures, task -> options.retryBackoff(task.getAttempts()));
+                var failedCount = failures.stream().filter(Objects::nonNull).count();
+                log.info("run a batch of {} tasks {}, {} failed.", tasks.size(), tasks.get(0).getType(), failedCount);
+            }
+        } catch (Exception e) {
+            log.error("save results of a batch of {} tasks failed.", batch.executions.size(), e);
+        } finally {
+            batch.executions.forEach(execution -> runningTasks.remove(execution.task.getId()));
+            onTaskFinished(batch.registeredTask, batch.executions.size());
+        }
+    }
+
+    private static List<Task> tasksOf(List<TaskExecution> executions) {
+        return executions.stream().map(execution -> execution.task).collect(Collectors.toList());
+    }
+
+    private void scheduleTimeout(TaskExecution execution, Duration timeout) {
+        if (timeout == null) {
+            return;
+        }
+        execution.timeout = timeoutScheduler.schedule(() -> {
+            if (execution.finished.compareAndSet(false, true)) {
+                log.warn("task {}(id={}) timed out after {}, interrupt it.",
+                        execution.task.getType(), execution.task.getId(), timeout);
+                execution.interrupt();
+                completeTask(execution, new RuntimeException(String.format("task timed out after %s", timeout)));
+            }
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // called once for each task, by its worker or by the timeout scheduler
+    private void completeTask(TaskExecution execution, Exception failure) {
+        var task = execution.task;
+        try {
+            if (execution.timeout != null) {
+                execution.timeout.cancel(false);
+            }
+            if (execution.context.isCancelled()) {
+                log.info("task {}(id={}) is cancelled.", task.getType(), task.getId());
+            } else if (failure == null) {
+                queue.markSucceeded(task);
+                log.info("run task {}(id={}) succeeded.", task.getType(), task.getId());
+            } else {
+                onTaskFailed(task, execution.registeredTask, failure);
+            }
+        } catch (Exception e) {
+            log.error("save result of task {}(id={}) failed.", task.getType(), task.getId(), e);
+        } finally {
+            runningTasks.remove(task.getId());
+            onTaskFinished(execution.registeredTask, 1);
+        }
+    }
+
+    private void cancelRunningTask(long taskId) {
+        var execution = runningTasks.get(taskId);
+        if (execution != null) {
+            execution.context.cancel();
+        }
+    }
+
+    private void onTaskFailed(Task task, RegisteredTask registeredTask, Exception e) {
+        if (registeredTask == null) {
+            queue.markFailed(task, e);
+            log.warn("run task {}(id={}) failed.", task.getType(), task.getId(), e);
+        } else if (task.hasAttemptsLeft()) {
+            var backoff = registeredTask.options.retryBackoff(task.getAttempts());
+            queue.markRetrying(task, e, backoff);
+            log.warn("run task {}(id={}) failed, will retry in {}.", task.getType(), task.getId(), backoff, e);
+        } else {
+            queue.markDeadLetter(task, e);
+            log.warn("run task {}(id={}) failed after {} attempts, moved to dead letter.",
+                    task.getType(), task.getId(), task.getAttempts(), e);
+        }
+    }
+
+    private void onTaskFinished(RegisteredTask registeredTask, int taskCount) {
+        synchronized (dispatchLock) {
+            if (registeredTask != null && registeredTask.asyncHandler != null) {
+                inFlightAsyncTasks--;
+            } else {
+                busyWorkers--;
+            }
+            // wakes up stop() waiting for async tasks
+            dispatchLock.notifyAll();
+            if (registeredTask != null) {
+                registeredTask.runningCount--;
+                registeredTask.claimedCount -= taskCount;
+            }
+            dispatchWaitingTasks();
+        }
+        synchronized (consumerThreadCoordinator) {
+            consumerThreadCoordinator.notifyAll();
+        }
+    }
+
+    private static double millisSince(long startedAtNanos) {
+        return (System.nanoTime() - startedAtNanos) / 1_000_000.0;
+    }
+
+    // a safety net only, consumers are woken up by new task listeners and the new task watermark
+    @Scheduled(fixedRateString = "${task.idleNotifyIntervalMillis:10000}")
     public void notifyNewTask() {
         synchronized (consumerThreadCoordinator) {
             log.info("notify consumer of new tasks");
@@ -97,10 +662,81 @@ public class TaskQueueConsumer implements InitializingBean {
         start();
     }
 
+    @Override
+    public void destroy() throws Exception {
+        stop(Duration.ofMillis(drainTimeoutMillis));
+    }
+
+    // stops claiming, gives prefetched tasks back to the queue at once, and waits for running tasks until the
+    // timeout, tasks still running then are interrupted and given back too, instead of waiting for the zombie sweep
+    public void stop(Duration drainTimeout) throws InterruptedException {
+        var deadline = System.nanoTime() + drainTimeout.toNanos();
+        isStopping = true;
+        synchronized (consumerThreadCoordinator) {
+            consumerThreadCoordinator.notifyAll();
+        }
+        consumerThread.join(drainTimeout.toMillis());
+        releaseTasks(tasksOf(drainWaitingTasks()));
+        workerPool.shutdown();
+        if (!workerPool.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)
+                || !awaitAsyncTasks(deadline)) {
+            var unfinished = runningTasks.values().stream()
+                    .filter(execution -> execution.finished.compareAndSet(false, true))
+                    .collect(Collectors.toList());
+            unfinished.forEach(TaskExecution::interrupt);
+            releaseTasks(tasksOf(unfinished));
+        }
+        timeoutScheduler.shutdownNow();
+        log.info("task consumer stopped.");
+    }
+
+    // returns false if there are still async tasks in flight at the deadline
+    private boolean awaitAsyncTasks(long deadline) throws InterruptedException {
+        synchronized (dispatchLock) {
+            while (inFlightAsyncTasks > 0) {
+                var millisToWait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (millisToWait <= 0) {
+                    return false;
+                }
+                dispatchLock.wait(millisToWait);
+            }
+            return true;
+        }
+    }
+
+    private List<TaskExecution> drainWaitingTasks() {
+        synchronized (dispatchLock) {
+            var drained = new ArrayList<>(waitingTasks);
+            waitingTasks.clear();
+            drained.forEach(execution -> {
+                execution.finished.set(true);
+                runningTasks.remove(execution.task.getId());
+                if (execution.registeredTask != null) {
+                    execution.registeredTask.claimedCount--;
+                }
+            });
+            return drained;
+        }
+    }
+
+    private void releaseTasks(List<Task> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        try {
+            queue.releaseTasks(tasks);
+            log.info("released {} tasks back to the queue.", tasks.size());
+        } catch (Exception e) {
+            log.error("release {} tasks failed, they will be cleaned as zombie tasks.", tasks.size(), e);
+        }
+    }
+
+    // tasks cancelled on other nodes are found by the heartbeat
     @Scheduled(fixedRate = HEARTBEAT_INTERVAL)
     public void triggerHeartBeat() {
         try {
-            queue.heartbeat(runningTasks);
+            var tasks = runningTasks.values().stream().map(execution -> execution.task).collect(Collectors.toList());
+            queue.heartbeat(tasks).forEach(this::cancelRunningTask);
         } catch (Exception e) {
             log.error("heart beat failed.", e);
         }
@@ -113,4 +749,115 @@ public class TaskQueueConsumer implements InitializingBean {
     public boolean isRunning() {
         return !isWaiting();
     }
+
+    private static class TaskExecution {
+
+        private final Task task;
+        private final RegisteredTask registeredTask;
+        private final TaskContext context;
+        private final long claimedAtNanos = System.nanoTime();
+        // set by whoever completes the task first, the worker or the timeout
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private volatile Thread thread;
+        // the stage of an async task, which has no thread to interrupt
+        private volatile CompletableFuture<?> future;
+        private volatile ScheduledFuture<?> timeout;
+
+        private TaskExecution(Task task, RegisteredTask registeredTask) {
+            this.task = task;
+            this.registeredTask = registeredTask;
+            this.context = new TaskContext(task.getId());
+        }
+
+        private boolean isBatched() {
+            return registeredTask != null && registeredTask.batchHandler != null;
+        }
+
+        private boolean isAsync() {
+            return registeredTask != null && registeredTask.asyncHandler != null;
+        }
+
+        private void interrupt() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // tasks of a batch type run by one worker, each task is still finished at most once by its own flag
+    private static class TaskBatch {
+
+        private final RegisteredTask registeredTask;
+        private final List<TaskExecution> executions;
+        // set by whoever completes the batch first, the worker or the timeout
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        // the executions passed to the handler, not cancelled before the batch started
+        private volatile List<TaskExecution> running = List.of();
+        private volatile Thread thread;
+        private volatile ScheduledFuture<?> timeout;
+
+        private TaskBatch(RegisteredTask registeredTask, List<TaskExecution> executions) {
+            this.registeredTask = registeredTask;
+            this.executions = executions;
+        }
+    }
+
+    // runs a task of a TaskHandler or a TypedTaskHandler
+    private interface TaskRunner {
+
+        void run(Task task, TaskContext context);
+    }
+
+    private static class RegisteredTask {
+
+        private final TaskRunner runner;
+        private final BatchTaskHandler batchHandler;
+        private final AsyncTaskHandler asyncHandler;
+        private final TaskOptions options;
+        private final TokenBucket rateLimiter;
+        // running tasks, or running batches of a batch type, guarded by dispatchLock
+        private int runningCount = 0;
+        // running and prefetched tasks, guarded by dispatchLock
+        private int claimedCount = 0;
+        // guarded by dispatchLock
+        private ScheduledFuture<?> lingerDispatch;
+
+        private RegisteredTask(TaskRunner runner, BatchTaskHandler batchHandler, AsyncTaskHandler asyncHandler,
+                TaskOptions options) {
+            this.runner = runner;
+            this.batchHandler = batchHandler;
+            this.asyncHandler = asyncHandler;
+            this.options = options;
+            this.rateLimiter = options.getRateLimit() > 0
+                    ? new TokenBucket(options.getRateLimit(), options.getRateLimitBurst())
+                    : null;
+        }
+
+        private void onClaimed() {
+            claimedCount++;
+            if (rateLimiter != null) {
+                rateLimiter.take(1);
+            }
+        }
+
+        private boolean isFull() {
+            return runningCount >= options.getMaxConcurrency();
+        }
+
+        private boolean isThrottled() {
+            return claimedCount >= (long) options.getMaxConcurrency() * batchSize()
+                    || (rateLimiter != null && !rateLimiter.hasPermit());
+        }
+
+        private boolean isOverShared(int workerPoolSize, int totalWeight) {
+            return claimedCount >= (double) workerPoolSize * options.getWeight() / totalWeight * batchSize();
+        }
+
+        private int batchSize() {
+            return batchHandler != null ? options.getMaxBatchSize() : 1;
+        }
+    }
 }
@@ -1,14 +1,82 @@
 package com.brightliao.taskqueue;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 public interface TaskRepository {
 
-    List<Task> findNewTasks(int maxCount);
+    // tasks of the excluded types are left in the queue, e.g. types out of their rate limit on this consumer.
+    // claimed tasks are owned by ownerId until they finish or the lease of the owner expires
+    List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId);
+
+    // only claims tasks in the partitions, all the partitions when it is empty
+    List<Task> claimNewTasks(int maxCount, Collection<String> excludedTaskTypes, String ownerId,
+            Collection<Integer> partitions);
+
+    // the earliest due time of pending tasks, null if there is no pending task
+    LocalDateTime findNextDueAt(Collection<String> excludedTaskTypes);
 
     Task save(Task task);
 
+    // inserts the new tasks whose dedup keys are not taken by tasks of the same type, the others are skipped instead of
+    // failing the insert. returns the inserted tasks with their ids
+    List<Task> insertUniqueTasks(List<Task> tasks);
+
+    // sets the dedup keys of the tasks created before createdBefore to null, so the keys can be taken again. only the
+    // tasks of taskTypes if it is not empty, and not the ones of excludedTaskTypes
+    int releaseDedupKeys(Collection<String> taskTypes, Collection<String> excludedTaskTypes,
+            LocalDateTime createdBefore);
+
     List<Task> saveAll(List<Task> tasks);
 
-    int cleanZombieTasks(long heartbeatTimeout);
+    // inserts the lease of the consumer node if it is not there
+    void renewConsumerLease(String nodeId, LocalDateTime leaseExpiresAt);
+
+    List<String> findExpiredConsumers(LocalDateTime now);
+
+    // moves started or running tasks of the owner back to pending, or to dead letter if they are out of attempts,
+    // and records an event for each of them
+    int releaseTasksOfOwner(String ownerId, LocalDateTime now, String message, int maxEventsPerTask);
+
+    // deletes the consumer only if its lease is still expired, so a node coming back is not removed
+    int deleteConsumer(String nodeId, LocalDateTime expiredBefore);
+
+    // takes the named lock if it is free, expired or already held by the owner
+    boolean tryAcquireLock(String name, String ownerId, LocalDateTime now, LocalDateTime leaseExpiresAt);
+
+    // moves started or running tasks back to pending
+    int releaseTasks(Collection<Long> ids);
+
+    // cancels the task if it is not finished yet
+    int cancelTask(long id, LocalDateTime cancelledAt);
+
+    List<Long> findCancelledTaskIds(Collection<Long> ids);
+
+    // only for tasks claimed without an owner, tasks with an owner are released with the lease of the owner
+    int cleanZombieTasks(long heartbeatTimeout, int maxEventsPerTask);
+
+    List<Long> findFinishedTaskIds(Collection<String> taskTypes, Collection<String> excludedTaskTypes,
+            LocalDateTime endedBefore, int maxCount);
+
+    // moves the tasks to the archive table, their payloads and events are kept
+    int archiveTasks(Collection<Long> ids);
+
+    // deletes the tasks, their payloads and their events
+    int deleteTasks(Collection<Long> ids);
+
+    void savePayloads(List<TaskPayload> payloads);
+
+    List<TaskPayload> findPayloads(Collection<Long> taskIds);
+
+    // only the latest maxEventsPerTask events of each task are kept
+    void addEvents(List<TaskEvent> events, int maxEventsPerTask);
+
+    // in the order they were added
+    List<TaskEvent> findEvents(long taskId);
+
+    // bumped in the transaction adding tasks, so that it only moves after the tasks are visible
+    void touchNewTaskWatermark();
+
+    long findNewTaskWatermark();
 }
@@ -0,0 +1,54 @@
+package com.brightliao.taskqueue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// bumps the new task watermark after the enqueue transactions committed instead of inside them, so that producers
+// do not queue up on the lock of its row. requests arriving while a bump is queued are served by that bump, so a node
+// writes the row at most once per round trip however many tasks it adds
+@Slf4j
+public class TaskWatermarkBumper {
+
+    private final Runnable bump;
+    private final AtomicBoolean requested = new AtomicBoolean(false);
+    private final ExecutorService bumperThread;
+
+    public TaskWatermarkBumper(Runnable bump) {
+        this.bump = bump;
+        this.bumperThread = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "task-watermark-bumper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // the bump runs after this call, so it covers the tasks committed before
+    public void request() {
+        if (requested.getAndSet(true)) {
+            return;
+        }
+        try {
+            bumperThread.execute(() -> {
+                requested.set(false);
+                try {
+                    bump.run();
+                } catch (Exception e) {
+                    log.warn("bump new task watermark failed, other nodes will find the tasks by their idle polls.", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("task watermark bumper is stopped, skip bumping the watermark.");
+        }
+    }
+
+    // a bump requested already still runs
+    public void stop() throws InterruptedException {
+        bumperThread.shutdown();
+        bumperThread.awaitTermination(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,63 @@
+package com.brightliao.taskqueue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+// polls fast right after the watermark moved and backs off exponentially while the queue is quiet
+@Slf4j
+public class TaskWatermarkPoller {
+
+    private final LongSupplier watermarkReader;
+    private final Runnable onWatermarkChanged;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final Thread pollerThread;
+    private volatile long intervalMillis;
+
+    public TaskWatermarkPoller(LongSupplier watermarkReader, Runnable onWatermarkChanged,
+            Duration minInterval, Duration maxInterval) {
+        this.watermarkReader = watermarkReader;
+        this.onWatermarkChanged = onWatermarkChanged;
+        this.minIntervalMillis = minInterval.toMillis();
+        this.maxIntervalMillis = Math.max(maxInterval.toMillis(), minIntervalMillis);
+        this.intervalMillis = minIntervalMillis;
+        this.pollerThread = new Thread(this::run, "task-watermark-poller");
+        this.pollerThread.setDaemon(true);
+        this.pollerThread.start();
+    }
+
+    public void onActivity() {
+        intervalMillis = minIntervalMillis;
+    }
+
+    private void run() {
+        Long lastWatermark = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                var watermark = watermarkReader.getAsLong();
+                if (lastWatermark != null && watermark != lastWatermark) {
+                    log.debug("new task watermark changed from {} to {}.", lastWatermark, watermark);
+                    onWatermarkChanged.run();
+                    intervalMillis = minIntervalMillis;
+                } else {
+                    intervalMillis = Math.min(intervalMillis * 2, maxIntervalMillis);
+                }
+                lastWatermark = watermark;
+            } catch (Exception e) {
+                log.warn("poll new task watermark failed.", e);
+                intervalMillis = maxIntervalMillis;
+            }
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void stop() {
+        pollerThread.interrupt();
+    }
+}
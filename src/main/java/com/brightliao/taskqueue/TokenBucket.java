@@ -0,0 +1,50 @@
+package com.brightliao.taskqueue;
+
+import java.util.function.LongSupplier;
+
+// permits are taken for tasks already claimed, so a claim returning more tasks than the permits left drives the
+// bucket into debt, and the task type is skipped by later claims until the debt is paid back
+public class TokenBucket {
+
+    private final double permitsPerSecond;
+    private final double capacity;
+    private final LongSupplier nanoClock;
+    private double tokens;
+    private long refilledAtNanos;
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(double permitsPerSecond, int burst, LongSupplier nanoClock) {
+        if (permitsPerSecond <= 0) {
+            throw new RuntimeException(String.format("permits per second should be positive: %s", permitsPerSecond));
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(burst, 1);
+        this.nanoClock = nanoClock;
+        this.tokens = capacity;
+        this.refilledAtNanos = nanoClock.getAsLong();
+    }
+
+    public synchronized boolean hasPermit() {
+        refill();
+        return tokens >= 1;
+    }
+
+    public synchronized void take(int permits) {
+        refill();
+        tokens -= permits;
+    }
+
+    public synchronized long nanosUntilPermit() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / permitsPerSecond * 1_000_000_000);
+    }
+
+    private void refill() {
+        var now = nanoClock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - refilledAtNanos) * permitsPerSecond / 1_000_000_000);
+        refilledAtNanos = now;
+    }
+}
@@ -0,0 +1,12 @@
+package com.brightliao.taskqueue;
+
+// receives the arg read by a reader cached for the arg type, instead of the raw json
+public interface TypedTaskHandler<T> {
+
+    void run(T arg);
+
+    // override this one to observe cancellation of the task
+    default void run(T arg, TaskContext context) {
+        run(arg);
+    }
+}
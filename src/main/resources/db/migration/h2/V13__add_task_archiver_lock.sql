@@ -0,0 +1,3 @@
+-- the node holding this lock archives finished tasks, so that archivers of other nodes do not archive the same ids
+INSERT INTO task_locks (name, owner_id, lease_expires_at)
+SELECT 'task_archiver', NULL, NULL WHERE NOT EXISTS (SELECT 1 FROM task_locks WHERE name = 'task_archiver');
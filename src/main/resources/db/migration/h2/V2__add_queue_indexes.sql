@@ -0,0 +1,5 @@
+-- serves the claim query: status = 'PENDING' order by created_at
+CREATE INDEX IF NOT EXISTS idx_tasks_status_created_at ON tasks (status, created_at);
+
+-- serves the zombie sweep: status in ('STARTED', 'RUNNING') and heartbeat_at < ?
+CREATE INDEX IF NOT EXISTS idx_tasks_status_heartbeat_at ON tasks (status, heartbeat_at);
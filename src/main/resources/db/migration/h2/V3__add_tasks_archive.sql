@@ -0,0 +1,17 @@
+-- serves the archiver: status in ('SUCCEEDED', 'FAILED') and ended_at < ?
+CREATE INDEX IF NOT EXISTS idx_tasks_status_ended_at ON tasks (status, ended_at);
+
+CREATE TABLE IF NOT EXISTS tasks_archive (
+    id           BIGINT       NOT NULL PRIMARY KEY,
+    task_type    VARCHAR(255),
+    task_arg     TEXT,
+    status       VARCHAR(255),
+    message      TEXT,
+    version      INTEGER      NOT NULL,
+    created_at   TIMESTAMP,
+    started_at   TIMESTAMP,
+    run_at       TIMESTAMP,
+    ended_at     TIMESTAMP,
+    heartbeat_at TIMESTAMP,
+    archived_at  TIMESTAMP    NOT NULL
+);
@@ -0,0 +1,7 @@
+-- tasks are claimed by status = 'PENDING' and due_at <= now, order by due_at
+ALTER TABLE tasks ADD COLUMN IF NOT EXISTS due_at TIMESTAMP;
+UPDATE tasks SET due_at = created_at WHERE due_at IS NULL;
+CREATE INDEX IF NOT EXISTS idx_tasks_status_due_at ON tasks (status, due_at);
+DROP INDEX IF EXISTS idx_tasks_status_created_at;
+
+ALTER TABLE tasks_archive ADD COLUMN IF NOT EXISTS due_at TIMESTAMP;
@@ -0,0 +1,6 @@
+-- attempts counts the claims of a task, it is retried or requeued as a zombie until attempts reaches max_attempts
+ALTER TABLE tasks ADD COLUMN IF NOT EXISTS attempts INTEGER DEFAULT 0 NOT NULL;
+ALTER TABLE tasks ADD COLUMN IF NOT EXISTS max_attempts INTEGER DEFAULT 3 NOT NULL;
+
+ALTER TABLE tasks_archive ADD COLUMN IF NOT EXISTS attempts INTEGER DEFAULT 0 NOT NULL;
+ALTER TABLE tasks_archive ADD COLUMN IF NOT EXISTS max_attempts INTEGER DEFAULT 3 NOT NULL;
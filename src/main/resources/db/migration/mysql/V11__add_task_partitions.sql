@@ -0,0 +1,6 @@
+-- tasks are routed to partitions by task type or a key given when they are added, each consumer claims from
+-- its own partitions first, so nodes do not all contend on the head of one rank_at index range
+ALTER TABLE tasks ADD COLUMN partition_no INT NOT NULL DEFAULT 0;
+CREATE INDEX idx_tasks_partition_no_status_rank_at ON tasks (partition_no, status, rank_at);
+
+ALTER TABLE tasks_archive ADD COLUMN partition_no INT NOT NULL DEFAULT 0;
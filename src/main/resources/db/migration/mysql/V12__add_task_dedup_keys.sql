@@ -0,0 +1,6 @@
+-- a task added with a dedup key is not added again while a task of the same type and key is in the window,
+-- null keys are not unique. keys of tasks out of the window are released by setting them to null
+ALTER TABLE tasks ADD COLUMN dedup_key VARCHAR(255);
+CREATE UNIQUE INDEX idx_tasks_task_type_dedup_key ON tasks (task_type, dedup_key);
+
+ALTER TABLE tasks_archive ADD COLUMN dedup_key VARCHAR(255);
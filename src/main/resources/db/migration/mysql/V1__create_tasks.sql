@@ -0,0 +1,23 @@
+-- mysql has no sequences, tasks_seq is a one row table the way hibernate emulates a sequence there, next_val is
+-- the next value handed out and is bumped by the increment of 50.
+-- IF NOT EXISTS keeps databases created by hibernate's ddl-auto before migrations were introduced working
+CREATE TABLE IF NOT EXISTS tasks_seq (
+    next_val BIGINT
+);
+
+INSERT INTO tasks_seq (next_val)
+SELECT 1 FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM tasks_seq);
+
+CREATE TABLE IF NOT EXISTS tasks (
+    id           BIGINT       NOT NULL PRIMARY KEY,
+    task_type    VARCHAR(255),
+    task_arg     LONGTEXT,
+    status       VARCHAR(255),
+    message      TEXT,
+    version      INTEGER      NOT NULL,
+    created_at   DATETIME(6),
+    started_at   DATETIME(6),
+    run_at       DATETIME(6),
+    ended_at     DATETIME(6),
+    heartbeat_at DATETIME(6)
+);
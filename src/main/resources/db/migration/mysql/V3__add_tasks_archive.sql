@@ -0,0 +1,17 @@
+-- serves the archiver: status in ('SUCCEEDED', 'FAILED') and ended_at < ?
+CREATE INDEX idx_tasks_status_ended_at ON tasks (status, ended_at);
+
+CREATE TABLE IF NOT EXISTS tasks_archive (
+    id           BIGINT       NOT NULL PRIMARY KEY,
+    task_type    VARCHAR(255),
+    task_arg     LONGTEXT,
+    status       VARCHAR(255),
+    message      TEXT,
+    version      INTEGER      NOT NULL,
+    created_at   DATETIME(6),
+    started_at   DATETIME(6),
+    run_at       DATETIME(6),
+    ended_at     DATETIME(6),
+    heartbeat_at DATETIME(6),
+    archived_at  DATETIME(6)  NOT NULL
+);
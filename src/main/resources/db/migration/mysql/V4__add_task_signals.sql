@@ -0,0 +1,8 @@
+-- a watermark bumped by every enqueue, idle consumers on all nodes poll it to find out about new tasks cheaply
+CREATE TABLE IF NOT EXISTS task_signals (
+    name    VARCHAR(64) NOT NULL PRIMARY KEY,
+    version BIGINT      NOT NULL
+);
+
+INSERT INTO task_signals (name, version)
+SELECT 'new_tasks', 0 FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM task_signals WHERE name = 'new_tasks');
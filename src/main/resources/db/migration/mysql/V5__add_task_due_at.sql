@@ -0,0 +1,7 @@
+-- tasks are claimed by status = 'PENDING' and due_at <= now, order by due_at
+ALTER TABLE tasks ADD COLUMN due_at DATETIME(6);
+UPDATE tasks SET due_at = created_at WHERE due_at IS NULL;
+CREATE INDEX idx_tasks_status_due_at ON tasks (status, due_at);
+DROP INDEX idx_tasks_status_created_at ON tasks;
+
+ALTER TABLE tasks_archive ADD COLUMN due_at DATETIME(6);
@@ -0,0 +1,21 @@
+-- every consumer node renews one lease row instead of heartbeating the rows of its running tasks,
+-- claimed tasks are stamped with the node id, so the tasks of an expired lease are released by owner_id
+CREATE TABLE IF NOT EXISTS task_consumers (
+    node_id          VARCHAR(64) NOT NULL PRIMARY KEY,
+    lease_expires_at DATETIME(6) NOT NULL
+);
+
+ALTER TABLE tasks ADD COLUMN owner_id VARCHAR(64);
+CREATE INDEX idx_tasks_owner_id_status ON tasks (owner_id, status);
+
+ALTER TABLE tasks_archive ADD COLUMN owner_id VARCHAR(64);
+
+-- a lock row is held by the owner until its lease expires, e.g. the node elected to sweep zombie tasks
+CREATE TABLE IF NOT EXISTS task_locks (
+    name             VARCHAR(64) NOT NULL PRIMARY KEY,
+    owner_id         VARCHAR(64),
+    lease_expires_at DATETIME(6)
+);
+
+INSERT INTO task_locks (name, owner_id, lease_expires_at)
+SELECT 'zombie_sweeper', NULL, NULL FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM task_locks WHERE name = 'zombie_sweeper');
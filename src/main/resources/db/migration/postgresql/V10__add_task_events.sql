@@ -0,0 +1,10 @@
+-- failures, retries and zombie recoveries of tasks, the tasks rows only keep the last error.
+-- the latest events of a task are kept up to a cap, the oldest ones are found by the (task_id, id) index
+CREATE TABLE IF NOT EXISTS task_events (
+    id         BIGINT      GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    task_id    BIGINT      NOT NULL,
+    event_type VARCHAR(32) NOT NULL,
+    message    TEXT,
+    created_at TIMESTAMP   NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_task_events_task_id_id ON task_events (task_id, id);
@@ -0,0 +1,36 @@
+-- before migrations were introduced, hibernate's ddl-auto created the tasks table as jpa_task_repository$task_entity
+-- with identity ids. its rows are moved into tasks with their ids shifted past the ones tasks_seq handed out already,
+-- which keeps them as they are unless the app ran on tasks before, and tasks_seq is restarted after them.
+-- the old table is created empty if it does not exist, so nothing is moved then
+-- V1 is left as it is, its IF NOT EXISTS did not find that table, but changing it would fail the checksum
+-- of databases that ran it
+CREATE TABLE IF NOT EXISTS jpa_task_repository$task_entity (
+    id           BIGINT       NOT NULL PRIMARY KEY,
+    task_type    VARCHAR(255),
+    task_arg     TEXT,
+    status       VARCHAR(255),
+    message      TEXT,
+    version      INTEGER      NOT NULL,
+    created_at   TIMESTAMP,
+    started_at   TIMESTAMP,
+    run_at       TIMESTAMP,
+    ended_at     TIMESTAMP,
+    heartbeat_at TIMESTAMP
+);
+
+INSERT INTO tasks (id, task_type, task_arg, status, message, version, created_at, due_at, rank_at,
+                   started_at, run_at, ended_at, heartbeat_at)
+SELECT old_tasks.id + moved_after.handed_out_id, old_tasks.task_type, old_tasks.task_arg, old_tasks.status,
+       old_tasks.message, old_tasks.version, old_tasks.created_at, old_tasks.created_at, old_tasks.created_at,
+       old_tasks.started_at, old_tasks.run_at, old_tasks.ended_at, old_tasks.heartbeat_at
+FROM jpa_task_repository$task_entity old_tasks
+CROSS JOIN (
+    SELECT GREATEST((SELECT COALESCE(MAX(id), 0) FROM tasks),
+                    (SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM tasks_seq)) AS handed_out_id
+) moved_after;
+
+DROP TABLE jpa_task_repository$task_entity;
+
+-- ids are handed out in blocks of 50 ending at the value taken from the sequence, which is the value set here
+-- plus the increment next time
+SELECT setval('tasks_seq', GREATEST((SELECT COALESCE(MAX(id), 0) FROM tasks), (SELECT last_value FROM tasks_seq)));
@@ -0,0 +1,16 @@
+-- IF NOT EXISTS keeps databases created by hibernate's ddl-auto before migrations were introduced working
+CREATE SEQUENCE IF NOT EXISTS tasks_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS tasks (
+    id           BIGINT       NOT NULL PRIMARY KEY,
+    task_type    VARCHAR(255),
+    task_arg     TEXT,
+    status       VARCHAR(255),
+    message      TEXT,
+    version      INTEGER      NOT NULL,
+    created_at   TIMESTAMP,
+    started_at   TIMESTAMP,
+    run_at       TIMESTAMP,
+    ended_at     TIMESTAMP,
+    heartbeat_at TIMESTAMP
+);
@@ -0,0 +1,9 @@
+-- tasks are claimed by status = 'PENDING' and rank_at <= now and due_at <= now, order by rank_at,
+-- where rank_at is due_at brought forward by the priority
+ALTER TABLE tasks ADD COLUMN IF NOT EXISTS priority INTEGER DEFAULT 0 NOT NULL;
+ALTER TABLE tasks ADD COLUMN IF NOT EXISTS rank_at TIMESTAMP;
+UPDATE tasks SET rank_at = due_at WHERE rank_at IS NULL;
+CREATE INDEX IF NOT EXISTS idx_tasks_status_rank_at ON tasks (status, rank_at);
+
+ALTER TABLE tasks_archive ADD COLUMN IF NOT EXISTS priority INTEGER DEFAULT 0 NOT NULL;
+ALTER TABLE tasks_archive ADD COLUMN IF NOT EXISTS rank_at TIMESTAMP;
@@ -0,0 +1,7 @@
+-- large task args are stored out of the tasks rows, so that claims, sweeps and archiving do not read them.
+-- the task_arg of such a task is NULL, and the payload is kept when the task is archived
+CREATE TABLE IF NOT EXISTS task_payloads (
+    task_id  BIGINT      NOT NULL PRIMARY KEY,
+    encoding VARCHAR(32) NOT NULL,
+    data     BYTEA       NOT NULL
+);
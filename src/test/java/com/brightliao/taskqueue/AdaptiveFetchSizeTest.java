@@ -0,0 +1,38 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveFetchSizeTest {
+
+    @Test
+    void should_fetch_for_free_workers_only_before_knowing_task_durations() {
+        var fetchSize = new AdaptiveFetchSize(4, 1, 16);
+
+        assertThat(fetchSize.next(4, 0)).isEqualTo(4);
+        assertThat(fetchSize.next(1, 1)).isEqualTo(0);
+    }
+
+    @Test
+    void should_prefetch_more_tasks_when_tasks_are_short_compared_to_claims() {
+        var fetchSize = new AdaptiveFetchSize(4, 1, 16);
+        fetchSize.onTasksClaimed(10);
+        fetchSize.onTaskFinished(5);
+
+        assertThat(fetchSize.targetPrefetchedTasks()).isEqualTo(8);
+        assertThat(fetchSize.next(0, 2)).isEqualTo(6);
+        assertThat(fetchSize.next(0, 8)).isEqualTo(0);
+    }
+
+    @Test
+    void should_keep_fetch_size_within_bounds() {
+        var fetchSize = new AdaptiveFetchSize(4, 2, 6);
+        fetchSize.onTasksClaimed(100);
+        fetchSize.onTaskFinished(1);
+
+        assertThat(fetchSize.targetPrefetchedTasks()).isEqualTo(6);
+        assertThat(fetchSize.next(4, 0)).isEqualTo(6);
+        assertThat(fetchSize.next(0, 5)).isEqualTo(2);
+    }
+}
@@ -0,0 +1,12 @@
+package com.brightliao.taskqueue;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+// runs the same claims against the plain jdbc task repository on postgresql
+@SpringBootTest(properties = {
+        "task.repository=jdbc",
+        "spring.jpa.database-platform=org.hibernate.dialect.PostgreSQL95Dialect"
+})
+class JdbcPostgresTaskRepositoryTests extends PostgresTaskRepositoryTests {
+
+}
@@ -0,0 +1,12 @@
+package com.brightliao.taskqueue;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+// runs the same scenarios against the plain jdbc task repository, in a database of its own
+@SpringBootTest(properties = {
+        "task.repository=jdbc",
+        "spring.datasource.url=jdbc:h2:mem:jdbc-task-repository;DB_CLOSE_DELAY=-1;MODE=MYSQL"
+})
+class JdbcTaskQueueApplicationTests extends TaskQueueApplicationTests {
+
+}
@@ -0,0 +1,131 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// forces dedup key, consumer lease and archive collisions through the jpa task repository, in a database of its own
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:jpa-task-repository;DB_CLOSE_DELAY=-1;MODE=MYSQL"
+})
+class JpaTaskRepositoryTests {
+
+    @SpyBean
+    private TaskRepository taskRepository;
+    @Autowired
+    private TaskQueue queue;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void should_translate_a_taken_dedup_key_to_data_integrity_violation() {
+        var dedupKey = UUID.randomUUID().toString();
+        transactionTemplate.execute(status -> taskRepository.saveAll(List.of(uniqueTask(dedupKey))));
+
+        assertThatThrownBy(() -> transactionTemplate.execute(
+                status -> taskRepository.saveAll(List.of(uniqueTask(dedupKey)))))
+                .isInstanceOf(DataIntegrityViolationException.class);
+    }
+
+    @Test
+    void should_skip_unique_tasks_whose_dedup_keys_are_taken() {
+        var takenKey = UUID.randomUUID().toString();
+        var newKey = UUID.randomUUID().toString();
+        transactionTemplate.execute(status -> taskRepository.saveAll(List.of(uniqueTask(takenKey))));
+
+        var inserted = transactionTemplate.execute(status -> taskRepository.insertUniqueTasks(
+                List.of(uniqueTask(takenKey), uniqueTask(newKey), uniqueTask(newKey))));
+
+        assertThat(inserted).extracting(Task::getDedupKey).containsExactly(newKey);
+        assertThat(jdbcTemplate.queryForObject("SELECT dedup_key FROM tasks WHERE id = ?", String.class,
+                inserted.get(0).getId())).isEqualTo(newKey);
+        assertThat(queue.addUniqueTask("task_1", "some arg", takenKey)).isFalse();
+    }
+
+    @Test
+    void should_release_dedup_keys_of_tasks_created_before_the_given_time() {
+        var dedupKey = UUID.randomUUID().toString();
+        transactionTemplate.execute(status -> taskRepository.saveAll(List.of(uniqueTask(dedupKey))));
+
+        transactionTemplate.execute(status -> taskRepository.releaseDedupKeys(List.of(), List.of("task_1"),
+                LocalDateTime.now().plusSeconds(1)));
+        assertThat(queue.addUniqueTask("task_1", "some arg", dedupKey)).isFalse();
+        transactionTemplate.execute(status -> taskRepository.releaseDedupKeys(List.of("task_1"), List.of(),
+                LocalDateTime.now().plusSeconds(1)));
+
+        var inserted = transactionTemplate.execute(
+                status -> taskRepository.insertUniqueTasks(List.of(uniqueTask(dedupKey))));
+        assertThat(inserted).hasSize(1);
+    }
+
+    @Test
+    void should_renew_a_lease_created_concurrently_by_another_transaction() throws Exception {
+        var nodeId = UUID.randomUUID().toString();
+        var firstLease = LocalDateTime.now().plusSeconds(30).truncatedTo(ChronoUnit.SECONDS);
+        var secondLease = firstLease.plusSeconds(1);
+        var firstRenewed = new CountDownLatch(1);
+        // the claim and the heartbeat of a starting node both create the lease, the first one commits only after
+        // the second one waits for its uncommitted row
+        var first = CompletableFuture.runAsync(() -> transactionTemplate.executeWithoutResult(status -> {
+            taskRepository.renewConsumerLease(nodeId, firstLease);
+            firstRenewed.countDown();
+            await().until(() -> renewalsInProgress() > 0);
+        }));
+        firstRenewed.await();
+        var second = CompletableFuture.runAsync(() -> transactionTemplate.executeWithoutResult(
+                status -> taskRepository.renewConsumerLease(nodeId, secondLease)));
+
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertThat(taskRepository.findExpiredConsumers(secondLease)).doesNotContain(nodeId);
+        assertThat(taskRepository.findExpiredConsumers(secondLease.plusSeconds(1))).contains(nodeId);
+    }
+
+    @Test
+    void should_archive_a_batch_whose_tasks_are_archived_already() {
+        var task = transactionTemplate.execute(
+                status -> taskRepository.saveAll(List.of(new Task("task_1", "\"some arg\"")))).get(0);
+        // left in the archive as if by an archiver of another node
+        jdbcTemplate.update("INSERT INTO tasks_archive (id, version, archived_at) VALUES (?, 0, ?)",
+                task.getId(), LocalDateTime.now());
+
+        var archivedCount = transactionTemplate.execute(status -> taskRepository.archiveTasks(List.of(task.getId())));
+
+        assertThat(archivedCount).isEqualTo(1);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM tasks WHERE id = ?", Integer.class, task.getId()))
+                .isEqualTo(0);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM tasks_archive WHERE id = ?", Integer.class,
+                task.getId())).isEqualTo(1);
+    }
+
+    // h2 spins while waiting for a row lock, so the waiting renewal is only seen by its statement
+    private int renewalsInProgress() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SESSIONS "
+                + "WHERE EXECUTING_STATEMENT LIKE '%task_consumers%' AND EXECUTING_STATEMENT NOT LIKE '%SESSIONS%'",
+                Integer.class);
+    }
+
+    private static Task uniqueTask(String dedupKey) {
+        var task = new Task("task_1", "\"some arg\"");
+        task.setDedupKey(dedupKey);
+        return task;
+    }
+}
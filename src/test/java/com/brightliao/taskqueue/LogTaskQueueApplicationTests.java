@@ -0,0 +1,13 @@
+package com.brightliao.taskqueue;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+// runs the same scenarios against the log task repository, the datasource is still there for the rest of the context
+@SpringBootTest(properties = {
+        "task.repository=log",
+        "task.log.dir=build/tmp/log-task-repository",
+        "spring.datasource.url=jdbc:h2:mem:log-task-repository;DB_CLOSE_DELAY=-1;MODE=MYSQL"
+})
+class LogTaskQueueApplicationTests extends TaskQueueApplicationTests {
+
+}
@@ -0,0 +1,193 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+class LogTaskRepositoryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void should_recover_tasks_payloads_and_events_by_replaying_log() {
+        var repository = open(1024 * 1024, 4);
+        repository.saveAll(List.of(new Task("task_type_1", "{}"), new Task("task_type_1", "{}"), new Task("task_type_2", null)));
+        repository.savePayloads(List.of(new TaskPayload(3L, TaskArgCodec.JSON, new byte[]{1, 2, 3})));
+        var claimed = repository.claimNewTasks(1, List.of(), "node-1");
+        repository.addEvents(List.of(new TaskEvent(null, 1L, TaskEvent.Type.RETRIED, "failed", LocalDateTime.now())), 20);
+        repository.renewConsumerLease("node-1", LocalDateTime.now().minusSeconds(1));
+        repository.destroy();
+
+        repository = open(1024 * 1024, 4);
+
+        assertThat(claimed).extracting(Task::getId).containsExactly(1L);
+        assertThat(repository.claimNewTasks(10, List.of(), "node-2")).extracting(Task::getId).containsExactly(2L, 3L);
+        assertThat(repository.findPayloads(List.of(3L)).get(0).getData()).containsExactly(1, 2, 3);
+        assertThat(repository.findEvents(1L)).extracting(TaskEvent::getMessage).containsExactly("failed");
+        assertThat(repository.findExpiredConsumers(LocalDateTime.now())).containsExactly("node-1");
+        assertThat(repository.releaseTasksOfOwner("node-1", LocalDateTime.now(), "released", 20)).isEqualTo(1);
+        assertThat(repository.claimNewTasks(10, List.of(), "node-2")).extracting(Task::getId).containsExactly(1L);
+        repository.saveAll(List.of(new Task("task_type_1", "{}")));
+        assertThat(repository.claimNewTasks(10, List.of(), "node-2")).extracting(Task::getId).containsExactly(4L);
+        repository.destroy();
+    }
+
+    @Test
+    void should_compact_log_into_live_tasks_and_drop_deleted_ones() throws IOException {
+        var repository = open(4096, 2);
+        var tasks = repository.saveAll(LongStream.range(0, 200)
+                .mapToObj(i -> new Task("task_type_1", "{}"))
+                .collect(Collectors.toList()));
+        var claimed = repository.claimNewTasks(200, List.of(), "node-1");
+        claimed.forEach(Task::markSucceeded);
+        repository.saveAll(claimed.subList(0, 190));
+        repository.deleteTasks(claimed.subList(0, 190).stream().map(Task::getId).collect(Collectors.toList()));
+        // the log is compacted in the background
+        await().untilAsserted(() -> assertThat(segments()).hasSizeLessThan(12));
+        repository.destroy();
+
+        repository = open(4096, 2);
+        assertThat(repository.findFinishedTaskIds(List.of(), List.of(), LocalDateTime.now().plusDays(1), 1000)).isEmpty();
+        assertThat(repository.releaseTasks(tasks.stream().map(Task::getId).collect(Collectors.toList()))).isEqualTo(10);
+        assertThat(repository.claimNewTasks(1000, List.of(), "node-2")).hasSize(10)
+                .allMatch(task -> task.getId() > 190);
+        repository.destroy();
+    }
+
+    @Test
+    void should_replay_segments_before_a_snapshot_cut_by_a_crash(@TempDir Path backup) throws IOException {
+        var repository = open(4096, 100);
+        repository.saveAll(LongStream.range(0, 200)
+                .mapToObj(i -> new Task("task_type_1", "{}"))
+                .collect(Collectors.toList()));
+        repository.destroy();
+        var segmentsBeforeSnapshot = segments();
+        for (var segment : segmentsBeforeSnapshot) {
+            Files.copy(segment, backup.resolve(segment.getFileName()));
+        }
+        repository = open(4096, 100);
+        repository.compact();
+        repository.destroy();
+
+        // the crash happened in the middle of the first segment of the snapshot, before the old segments were deleted
+        var snapshotSegments = segments();
+        try (var channel = FileChannel.open(snapshotSegments.get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(2048), 2048);
+        }
+        for (var segment : snapshotSegments.subList(1, snapshotSegments.size())) {
+            Files.delete(segment);
+        }
+        for (var segment : segmentsBeforeSnapshot) {
+            Files.copy(backup.resolve(segment.getFileName()), segment);
+        }
+
+        repository = open(4096, 100);
+        assertThat(repository.claimNewTasks(1000, List.of(), "node-1")).hasSize(200);
+        repository.destroy();
+        repository = open(4096, 100);
+        assertThat(repository.releaseTasksOfOwner("node-1", LocalDateTime.now(), "released", 20)).isEqualTo(200);
+        repository.destroy();
+    }
+
+    @Test
+    void should_keep_dedup_keys_unique_until_they_are_released() {
+        var repository = open(1024 * 1024, 4);
+        var task = new Task("task_type_1", "{}");
+        task.setDedupKey("key-1");
+        repository.save(task);
+        var duplicate = new Task("task_type_1", "{}");
+        duplicate.setDedupKey("key-1");
+        var other = new Task("task_type_1", "{}");
+        other.setDedupKey("key-2");
+
+        assertThatThrownBy(() -> repository.saveAll(List.of(other, duplicate))).isInstanceOf(DuplicateKeyException.class);
+        var repeated = new Task("task_type_1", "{}");
+        repeated.setDedupKey("key-2");
+        assertThat(repository.insertUniqueTasks(List.of(other, duplicate, repeated)))
+                .extracting(Task::getDedupKey).containsExactly("key-2");
+        assertThat(repository.releaseDedupKeys(List.of("task_type_2"), List.of(), LocalDateTime.now().plusSeconds(1)))
+                .isEqualTo(0);
+        assertThat(repository.releaseDedupKeys(List.of("task_type_1"), List.of(), LocalDateTime.now().plusSeconds(1)))
+                .isEqualTo(2);
+        assertThat(repository.insertUniqueTasks(List.of(repeated, duplicate)))
+                .extracting(Task::getDedupKey).containsExactly("key-2", "key-1");
+        repository.destroy();
+    }
+
+    @Test
+    void should_save_none_of_the_tasks_if_any_of_them_is_stale() {
+        var repository = open(1024 * 1024, 4);
+        repository.saveAll(List.of(new Task("task_type_1", "{}"), new Task("task_type_1", "{}")));
+        var claimed = repository.claimNewTasks(2, List.of(), "node-1");
+        claimed.forEach(Task::markSucceeded);
+        claimed.get(1).setVersion(claimed.get(1).getVersion() - 1);
+
+        assertThatThrownBy(() -> repository.saveAll(claimed)).hasMessageContaining("bigger version");
+        assertThat(repository.findFinishedTaskIds(List.of(), List.of(), LocalDateTime.now().plusDays(1), 10)).isEmpty();
+        repository.destroy();
+    }
+
+    @Test
+    void should_find_finished_tasks_in_the_order_they_ended() {
+        var repository = open(1024 * 1024, 4);
+        repository.saveAll(List.of(new Task("task_type_1", "{}"), new Task("task_type_2", "{}"),
+                new Task("task_type_1", "{}")));
+        var claimed = repository.claimNewTasks(3, List.of(), "node-1");
+        var now = LocalDateTime.now();
+        for (int i = 0; i < claimed.size(); i++) {
+            claimed.get(i).markSucceeded();
+            claimed.get(i).setEndedAt(now.minusMinutes(10 - i));
+        }
+        claimed.get(0).setEndedAt(now.minusMinutes(1));
+        repository.saveAll(claimed);
+
+        assertThat(repository.findFinishedTaskIds(List.of(), List.of(), now.minusMinutes(2), 10))
+                .containsExactly(2L, 3L);
+        assertThat(repository.findFinishedTaskIds(List.of("task_type_1"), List.of(), now, 10))
+                .containsExactly(3L, 1L);
+        assertThat(repository.findFinishedTaskIds(List.of(), List.of("task_type_2"), now, 1)).containsExactly(3L);
+        repository.destroy();
+    }
+
+    @Test
+    void should_keep_records_larger_than_a_segment() {
+        var repository = open(4096, 100);
+        var data = new byte[10000];
+        data[9999] = 7;
+        repository.saveAll(List.of(new Task("task_type_1", null), new Task("task_type_1", "{}")));
+        repository.savePayloads(List.of(new TaskPayload(1L, TaskArgCodec.JSON, data)));
+        repository.saveAll(List.of(new Task("task_type_1", "{}")));
+        repository.destroy();
+
+        repository = open(4096, 100);
+        assertThat(repository.findPayloads(List.of(1L)).get(0).getData()).isEqualTo(data);
+        assertThat(repository.claimNewTasks(10, List.of(), "node-1")).extracting(Task::getId).containsExactly(1L, 2L, 3L);
+        repository.destroy();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private LogTaskRepository open(int segmentBytes, int compactSegments) {
+        return new LogTaskRepository(dir.toString(), segmentBytes, "always", 100, compactSegments);
+    }
+}
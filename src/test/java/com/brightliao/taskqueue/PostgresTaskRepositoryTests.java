@@ -0,0 +1,60 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.brightliao.taskqueue.Task.TaskStatus;
+import com.brightliao.taskqueue.TaskQueueApplicationTests.TaskArg;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Instant;
+import java.util.UUID;
+
+// tasks are claimed by a single UPDATE ... RETURNING statement on postgresql, skipped where docker is not available.
+// the consumer is mocked out, so that the tasks are claimed by the test only
+@Testcontainers(disabledWithoutDocker = true)
+@SpringBootTest(properties = "spring.jpa.database-platform=org.hibernate.dialect.PostgreSQL95Dialect")
+class PostgresTaskRepositoryTests {
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:14-alpine");
+
+    @MockBean
+    private TaskQueueConsumer queueConsumer;
+    @Autowired
+    private TaskQueue queue;
+
+    @DynamicPropertySource
+    static void datasourceProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", POSTGRES::getJdbcUrl);
+        registry.add("spring.datasource.username", POSTGRES::getUsername);
+        registry.add("spring.datasource.password", POSTGRES::getPassword);
+        registry.add("spring.datasource.driver-class-name", POSTGRES::getDriverClassName);
+    }
+
+    @Test
+    void should_claim_due_tasks_by_rank_with_update_returning() {
+        var taskType = "task_" + UUID.randomUUID();
+        queue.addTask(taskType, new TaskArg("low"));
+        queue.addTask(taskType, new TaskArg("high"), 10);
+        queue.addTask(taskType, new TaskArg("later"), Instant.now().plusSeconds(3600), 0);
+
+        var claimed = queue.popTasks(10);
+
+        assertThat(claimed).extracting(Task::getArg)
+                .containsExactly("{\"message\":\"high\"}", "{\"message\":\"low\"}");
+        assertThat(claimed).allSatisfy(task -> {
+            assertThat(task.getStatus()).isEqualTo(TaskStatus.STARTED);
+            assertThat(task.getOwnerId()).isEqualTo(queue.getNodeId());
+            assertThat(task.getAttempts()).isEqualTo(1);
+        });
+        assertThat(queue.popTasks(10)).isEmpty();
+    }
+}
@@ -0,0 +1,82 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class TaskArchiverTest {
+
+    @Test
+    void should_archive_finished_tasks_in_batches_with_retention_of_task_type() {
+        var taskRepository = mock(TaskRepository.class);
+        var properties = new TaskArchiveProperties();
+        properties.setBatchSize(2);
+        properties.setRetentionByType(Map.of("task_type_1", Duration.ofDays(1)));
+        var archiver = new TaskArchiver(taskRepository, mockTransactionTemplate(), properties);
+        when(taskRepository.tryAcquireLock(eq("task_archiver"), anyString(), any(), any())).thenReturn(true);
+
+        when(taskRepository.findFinishedTaskIds(eq(List.of("task_type_1")), eq(List.of()), any(), eq(2)))
+                .thenReturn(List.of(1L, 2L))
+                .thenReturn(List.of(3L));
+        when(taskRepository.findFinishedTaskIds(eq(List.of()), eq(Set.of("task_type_1")), any(), eq(2)))
+                .thenReturn(List.of());
+        when(taskRepository.archiveTasks(anyCollection())).thenAnswer(answer -> answer.getArgument(0, List.class).size());
+
+        assertThat(archiver.archiveFinishedTasks()).isEqualTo(3);
+        verify(taskRepository, times(1)).archiveTasks(eq(List.of(1L, 2L)));
+        verify(taskRepository, times(1)).archiveTasks(eq(List.of(3L)));
+        verify(taskRepository, never()).deleteTasks(anyCollection());
+    }
+
+    @Test
+    void should_delete_finished_tasks_if_configured_to_delete_only() {
+        var taskRepository = mock(TaskRepository.class);
+        var properties = new TaskArchiveProperties();
+        properties.setDeleteOnly(true);
+        var archiver = new TaskArchiver(taskRepository, mockTransactionTemplate(), properties);
+        when(taskRepository.tryAcquireLock(eq("task_archiver"), anyString(), any(), any())).thenReturn(true);
+
+        when(taskRepository.findFinishedTaskIds(anyCollection(), anyCollection(), any(), anyInt()))
+                .thenReturn(List.of(1L))
+                .thenReturn(List.of());
+        when(taskRepository.deleteTasks(anyCollection())).thenReturn(1);
+
+        assertThat(archiver.archiveFinishedTasks()).isEqualTo(1);
+        verify(taskRepository, never()).archiveTasks(anyCollection());
+    }
+
+    @Test
+    void should_skip_archiving_if_the_archiver_lock_is_held_by_another_node() {
+        var taskRepository = mock(TaskRepository.class);
+        var archiver = new TaskArchiver(taskRepository, mockTransactionTemplate(), new TaskArchiveProperties());
+        when(taskRepository.tryAcquireLock(eq("task_archiver"), anyString(), any(), any())).thenReturn(false);
+
+        assertThat(archiver.archiveFinishedTasks()).isEqualTo(0);
+        verify(taskRepository, never()).findFinishedTaskIds(anyCollection(), anyCollection(), any(), anyInt());
+    }
+
+    private TransactionTemplate mockTransactionTemplate() {
+        var tt = mock(TransactionTemplate.class);
+        when(tt.execute(any())).thenAnswer(answer ->
+                ((TransactionCallback<?>) answer.getArgument(0)).doInTransaction(new SimpleTransactionStatus()));
+        return tt;
+    }
+}
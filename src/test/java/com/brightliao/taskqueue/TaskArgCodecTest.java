@@ -0,0 +1,83 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.junit.jupiter.api.Test;
+
+class TaskArgCodecTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void should_keep_small_arg_in_tasks_row() throws Exception {
+        var codec = new TaskArgCodec(objectMapper, TaskArgCodec.JSON, 64, 64);
+        var task = new Task("task_type_1", null);
+
+        codec.writeArg(task, new Arg("some arg"));
+
+        assertThat(task.getTaskArg()).isEqualTo("{\"value\":\"some arg\"}");
+        assertThat(task.getPayload()).isNull();
+        assertThat(codec.readerFor(Arg.class).<Arg>readValue(task.getTaskArg())).isEqualTo(new Arg("some arg"));
+    }
+
+    @Test
+    void should_store_large_arg_as_compressed_payload() {
+        var codec = new TaskArgCodec(objectMapper, TaskArgCodec.JSON, 64, 128);
+        var task = new Task("task_type_1", null);
+        var value = "a".repeat(1000);
+
+        codec.writeArg(task, new Arg(value));
+
+        assertThat(task.getTaskArg()).isNull();
+        assertThat(task.getPayload().getEncoding()).isEqualTo("json+gzip");
+        assertThat(task.getPayload().getData().length).isLessThan(200);
+        assertThat(codec.readPayload(task.getPayload())).isEqualTo("{\"value\":\"" + value + "\"}");
+    }
+
+    @Test
+    void should_encode_payload_in_smile() {
+        var codec = new TaskArgCodec(objectMapper, TaskArgCodec.SMILE, 16, 4096);
+        var task = new Task("task_type_1", null);
+
+        codec.writeArg(task, new Arg("some longer arg"));
+
+        assertThat(task.getPayload().getEncoding()).isEqualTo("smile");
+        assertThat(codec.readPayload(task.getPayload())).isEqualTo("{\"value\":\"some longer arg\"}");
+    }
+
+    @Test
+    void should_read_typed_arg_from_payload_without_json() throws Exception {
+        var codec = new TaskArgCodec(objectMapper, TaskArgCodec.SMILE, 16, 32);
+        var task = new Task("task_type_1", null);
+        var value = "b".repeat(1000);
+
+        codec.writeArg(task, new Arg(value));
+
+        assertThat(task.getPayload().getEncoding()).isEqualTo("smile+gzip");
+        assertThat(codec.<Arg>readArg(task, codec.readerFor(Arg.class))).isEqualTo(new Arg(value));
+        assertThat(codec.readArg(task)).isEqualTo("{\"value\":\"" + value + "\"}");
+    }
+
+    @Test
+    void should_read_arg_of_tasks_row() throws Exception {
+        var codec = new TaskArgCodec(objectMapper, TaskArgCodec.SMILE, 64, 64);
+        var task = new Task("task_type_1", null);
+
+        codec.writeArg(task, new Arg("some arg"));
+
+        assertThat(codec.<Arg>readArg(task, codec.readerFor(Arg.class))).isEqualTo(new Arg("some arg"));
+        assertThat(codec.readArg(task)).isEqualTo("{\"value\":\"some arg\"}");
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class Arg {
+
+        private String value;
+    }
+}
@@ -1,6 +1,7 @@
 package com.brightliao.taskqueue;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -12,6 +13,10 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 @SpringBootTest
 class TaskQueueApplicationTests {
 
@@ -24,26 +29,28 @@ class TaskQueueApplicationTests {
 
     @Test
     void should_runTask_periodically_and_fetchNewTasks_immediately_after_new_task_added() throws InterruptedException {
+        var firstTaskRun = new CountDownLatch(1);
+        var secondTaskStarted = new CountDownLatch(2);
         queueConsumer.registerTask("task_1", argString -> {
+            secondTaskStarted.countDown();
             try {
                 var arg = objectMapper.readValue(argString, TaskArg.class);
                 System.out.println("run task_1 with arg: " + arg);
                 Thread.sleep(1000);
+                firstTaskRun.countDown();
             } catch (JsonProcessingException | InterruptedException e) {
                 throw new RuntimeException(e);
             }
         });
         queue.addTask("task_1", new TaskArg("some message"));
 
-        Thread.sleep(5000);
-
-        assertThat(queueConsumer.isWaiting()).isTrue();
+        assertThat(firstTaskRun.await(10, TimeUnit.SECONDS)).isTrue();
+        await().atMost(Duration.ofSeconds(10)).until(queueConsumer::isWaiting);
         System.out.println("consumer should be in sleeping status, try add a new task and see if consumer wake up immediately");
         queue.addTask("task_1", new TaskArg("some message 1"));
-        Thread.sleep(10);
-        assertThat(queueConsumer.isRunning()).isTrue();
-
-        Thread.sleep(5000);
+        // far below the idle wait of the consumer, so only the notification of the new task wakes it up, the running
+        // state itself is too short to be polled as the consumer goes back to wait right after dispatching the task
+        assertThat(secondTaskStarted.await(500, TimeUnit.MILLISECONDS)).isTrue();
     }
 
     @Test
@@ -0,0 +1,90 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:task-queue-schema;DB_CLOSE_DELAY=-1;MODE=MYSQL")
+class TaskQueueSchemaTest {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void should_find_due_tasks_by_status_and_rank_at_index() {
+        var plan = explain("SELECT * FROM tasks WHERE status = 'PENDING' "
+                + "AND rank_at <= CURRENT_TIMESTAMP AND due_at <= CURRENT_TIMESTAMP ORDER BY status, rank_at LIMIT 10");
+
+        assertThat(plan).containsIgnoringCase("idx_tasks_status_rank_at");
+    }
+
+    @Test
+    void should_find_next_due_at_by_status_and_due_at_index() {
+        var plan = explain("SELECT MIN(due_at) FROM tasks WHERE status = 'PENDING'");
+
+        assertThat(plan).containsIgnoringCase("idx_tasks_status_due_at");
+    }
+
+    @Test
+    void should_clean_zombie_tasks_by_status_and_heartbeat_at_index() {
+        var plan = explain("UPDATE tasks SET status = 'PENDING' "
+                + "WHERE status IN ('RUNNING', 'STARTED') AND heartbeat_at < CURRENT_TIMESTAMP");
+
+        assertThat(plan).containsIgnoringCase("idx_tasks_status_heartbeat_at");
+    }
+
+    @Test
+    void should_release_tasks_of_expired_node_by_owner_id_and_status_index() {
+        var plan = explain("UPDATE tasks SET status = 'PENDING', owner_id = NULL "
+                + "WHERE owner_id = 'node-1' AND status IN ('STARTED', 'RUNNING')");
+
+        assertThat(plan).containsIgnoringCase("idx_tasks_owner_id_status");
+    }
+
+    @Test
+    void should_find_events_of_task_by_task_id_and_id_index() {
+        var plan = explain("SELECT id, event_type, message FROM task_events WHERE task_id = 1 ORDER BY id");
+
+        assertThat(plan).containsIgnoringCase("idx_task_events_task_id_id");
+    }
+
+    @Test
+    void should_find_dedup_keys_by_task_type_and_dedup_key_index() {
+        var plan = explain("SELECT dedup_key FROM tasks WHERE task_type = 'task_1' AND dedup_key IN ('key-1', 'key-2')");
+
+        assertThat(plan).containsIgnoringCase("idx_tasks_task_type_dedup_key");
+    }
+
+    @Test
+    void should_move_tasks_created_by_ddl_auto_before_migrations_into_tasks() {
+        var dataSource = new DriverManagerDataSource("jdbc:h2:mem:ddl-auto-tasks;DB_CLOSE_DELAY=-1;MODE=MYSQL", "sa", "sa");
+        var ddlAutoJdbcTemplate = new JdbcTemplate(dataSource);
+        ddlAutoJdbcTemplate.execute("CREATE TABLE jpa_task_repository$task_entity ("
+                + "id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, task_type VARCHAR(255), task_arg TEXT, "
+                + "status VARCHAR(255), message TEXT, version INTEGER NOT NULL, created_at TIMESTAMP, "
+                + "started_at TIMESTAMP, run_at TIMESTAMP, ended_at TIMESTAMP, heartbeat_at TIMESTAMP)");
+        ddlAutoJdbcTemplate.update("INSERT INTO jpa_task_repository$task_entity (task_type, task_arg, status, version, "
+                + "created_at) VALUES ('task_1', 'arg 1', 'PENDING', 0, CURRENT_TIMESTAMP), "
+                + "('task_1', 'arg 2', 'SUCCEEDED', 1, CURRENT_TIMESTAMP)");
+
+        Flyway.configure().dataSource(dataSource).locations("classpath:db/migration/h2")
+                .baselineOnMigrate(true).baselineVersion("0").load().migrate();
+
+        assertThat(ddlAutoJdbcTemplate.queryForList("SELECT task_arg FROM tasks WHERE due_at = created_at "
+                + "AND rank_at = created_at ORDER BY id", String.class)).containsExactly("arg 1", "arg 2");
+        assertThat(ddlAutoJdbcTemplate.queryForList("SELECT id FROM tasks ORDER BY id", Long.class))
+                .containsExactly(1L, 2L);
+        // the first id of the block handed out next is after the moved tasks
+        assertThat(ddlAutoJdbcTemplate.queryForObject("SELECT NEXT VALUE FOR tasks_seq", Long.class) - 49)
+                .isGreaterThan(2L);
+    }
+
+    private String explain(String sql) {
+        return jdbcTemplate.queryForObject("EXPLAIN " + sql, String.class);
+    }
+}
@@ -1,13 +1,23 @@
 package com.brightliao.taskqueue;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -16,15 +26,32 @@ import com.brightliao.taskqueue.Task.TaskStatus;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.SimpleTransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class TaskQueueTest {
@@ -36,7 +63,7 @@ public class TaskQueueTest {
         var taskRepository = mock(TaskRepository.class);
         final ObjectMapper objectMapper = new ObjectMapper();
         var queue = new TaskQueue(taskRepository, tt, objectMapper);
-        var consumer = new TaskQueueConsumer(queue, 1);
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
 
         var task1Handler = mock(TaskHandler.class);
         var task2Handler = mock(TaskHandler.class);
@@ -46,45 +73,51 @@ public class TaskQueueTest {
         // run task1 successfully
         var task1Arg = new TaskType1Arg("some arg");
         final Task task1 = someTask(1L, "task_type_1", "{\"arg\":\"some arg\"}");
-        when(taskRepository.findNewTasks(eq(1))).thenReturn(List.of(task1)).thenReturn(List.of());
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString())).thenReturn(List.of(task1)).thenReturn(List.of());
         when(taskRepository.saveAll(anyList())).thenAnswer(answer -> answer.getArgument(0));
         when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
 
         queue.addTask("task_type_1", task1Arg);
         consumer.start();
 
-        Thread.sleep(500);
-
-        // add -> running -> succeeded
-        verify(taskRepository, times(3)).save(any(Task.class));
-        // started
-        verify(taskRepository, times(1)).saveAll(anyList());
-        verify(task1Handler, times(1)).run(eq("{\"arg\":\"some arg\"}"));
+        await().untilAsserted(() -> {
+            // add -> running -> succeeded
+            verify(taskRepository, times(3)).save(any(Task.class));
+            // claimed -> claimed nothing, more empty claims may follow the fair share claim and the freed worker
+            verify(taskRepository, atLeast(2)).claimNewTasks(eq(1), anyCollection(), anyString());
+        });
+        // the consumer calls the context taking run, which mocks do not delegate to run(String)
+        verify(task1Handler, times(1)).run(eq("{\"arg\":\"some arg\"}"), any(TaskContext.class));
         assertThat(task1.isSucceeded()).isEqualTo(true);
 
         // run task2 failed
         var task2Arg = new TaskType2Arg("some arg");
         final Task task2 = someTask(2L, "task_type_2", "{\"arg\":\"some arg\"}");
-        when(taskRepository.findNewTasks(eq(1))).thenReturn(List.of(task2)).thenReturn(List.of());
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString())).thenReturn(List.of(task2)).thenReturn(List.of());
         ;
-        doThrow(RuntimeException.class).when(task2Handler).run(eq("{\"arg\":\"some arg\"}"));
+        doThrow(RuntimeException.class).when(task2Handler).run(eq("{\"arg\":\"some arg\"}"), any(TaskContext.class));
 
         queue.addTask("task_type_2", task2Arg);
 
-        Thread.sleep(500);
-
-        // add -> running -> failed
-        verify(taskRepository, times(6)).save(any(Task.class));
-        // started
-        verify(taskRepository, times(2)).saveAll(anyList());
-        verify(task2Handler, times(1)).run(eq("{\"arg\":\"some arg\"}"));
+        await().untilAsserted(() -> {
+            // add -> running -> retrying
+            verify(taskRepository, times(6)).save(any(Task.class));
+            // claimed -> claimed nothing, and the empty claims as above
+            verify(taskRepository, atLeast(4)).claimNewTasks(eq(1), anyCollection(), anyString());
+        });
+        verify(task2Handler, times(1)).run(eq("{\"arg\":\"some arg\"}"), any(TaskContext.class));
         assertThat(task2.isSucceeded()).isEqualTo(false);
+        // the thrown error is handled as a failed attempt, which is retried later
+        assertThat(task2.getStatus()).isEqualTo(TaskStatus.PENDING);
 
+        // nothing is running, so the heartbeat only renews the lease
         consumer.triggerHeartBeat();
-        verify(taskRepository, times(3)).saveAll(anyList());
+        verify(taskRepository, never()).findCancelledTaskIds(anyCollection());
+        verify(taskRepository, never()).saveAll(anyList());
 
+        when(taskRepository.tryAcquireLock(eq("zombie_sweeper"), anyString(), any(), any())).thenReturn(true);
         queue.cleanZombieTasks();
-        verify(taskRepository, times(1)).cleanZombieTasks(anyLong());
+        verify(taskRepository, times(1)).cleanZombieTasks(anyLong(), anyInt());
     }
 
     @Test
@@ -94,22 +127,751 @@ public class TaskQueueTest {
         var taskRepository = mock(TaskRepository.class);
         final ObjectMapper objectMapper = new ObjectMapper();
         var queue = new TaskQueue(taskRepository, tt, objectMapper);
-        var consumer = new TaskQueueConsumer(queue, 1);
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
 
         var task1Arg = new TaskType1Arg("some arg");
         final Task task1 = someTask(1L, "some_unknown_task", "{\"arg\":\"some arg\"}");
-        when(taskRepository.findNewTasks(eq(1))).thenReturn(List.of(task1)).thenReturn(List.of());
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString())).thenReturn(List.of(task1)).thenReturn(List.of());
         when(taskRepository.saveAll(anyList())).thenAnswer(answer -> answer.getArgument(0));
         when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
 
         queue.addTask("some_unknown_task", task1Arg);
         consumer.start();
 
-        Thread.sleep(500);
-
+        await().untilAsserted(() -> assertThat(task1.getStatus()).isEqualTo(TaskStatus.FAILED));
         assertThat(task1.isSucceeded()).isEqualTo(false);
     }
 
+    @Test
+    void should_run_tasks_concurrently_and_respect_concurrency_limit_of_task_type() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 4, 4);
+
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var limitedRunning = new AtomicInteger();
+        var maxLimitedRunning = new AtomicInteger();
+        consumer.registerTask("task_type_1", argString -> runSlowly(running, maxRunning));
+        consumer.registerTask("task_type_2", argString -> runSlowly(limitedRunning, maxLimitedRunning),
+                TaskOptions.builder().maxConcurrency(1).build());
+
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString()))
+                .thenReturn(List.of(someTask(1L, "task_type_1", "{}"), someTask(2L, "task_type_1", "{}"),
+                        someTask(3L, "task_type_2", "{}"), someTask(4L, "task_type_2", "{}")))
+                .thenReturn(List.of());
+        when(taskRepository.saveAll(anyList())).thenAnswer(answer -> answer.getArgument(0));
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+
+        // running -> succeeded for all 4 tasks
+        await().untilAsserted(() -> verify(taskRepository, times(8)).save(any(Task.class)));
+        assertThat(maxRunning.get()).isEqualTo(2);
+        assertThat(maxLimitedRunning.get()).isEqualTo(1);
+    }
+
+    @Test
+    void should_claim_tasks_of_other_types_for_workers_left_free_by_type_at_concurrency_limit() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 2, 2);
+        var limitedReleased = new CountDownLatch(1);
+        var otherRun = new CountDownLatch(1);
+        consumer.registerTask("task_type_1", argString -> {
+            try {
+                limitedReleased.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, TaskOptions.builder().maxConcurrency(1).build());
+        consumer.registerTask("task_type_2", argString -> otherRun.countDown());
+
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString()))
+                .thenReturn(List.of(someTask(1L, "task_type_1", "{}"), someTask(2L, "task_type_1", "{}")))
+                .thenReturn(List.of(someTask(3L, "task_type_2", "{}")))
+                .thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+
+        // task 2 waits for task 1 of its type, the other worker is free for task 3
+        assertThat(otherRun.await(5, TimeUnit.SECONDS)).isTrue();
+        limitedReleased.countDown();
+        consumer.stop(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void should_add_tasks_in_one_batch_and_notify_listeners_once() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var notifiedCount = new AtomicInteger();
+        queue.onNewTask(notifiedCount::incrementAndGet);
+
+        queue.addTasks("task_type_1", List.of(new TaskType1Arg("arg 1"), new TaskType1Arg("arg 2"), new TaskType1Arg("arg 3")));
+
+        ArgumentCaptor<List<Task>> tasksCaptor = ArgumentCaptor.forClass(List.class);
+        verify(taskRepository, times(1)).saveAll(tasksCaptor.capture());
+        verify(taskRepository, never()).save(any(Task.class));
+        assertThat(tasksCaptor.getValue()).extracting(Task::getArg)
+                .containsExactly("{\"arg\":\"arg 1\"}", "{\"arg\":\"arg 2\"}", "{\"arg\":\"arg 3\"}");
+        assertThat(notifiedCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    void should_group_commit_concurrently_added_tasks() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        queue.enableGroupCommit(Duration.ofMillis(200), 100);
+
+        var producers = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            var taskArg = new TaskType1Arg("arg " + i);
+            producers.add(new Thread(() -> queue.addTask("task_type_1", taskArg)));
+        }
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join(1000);
+        }
+
+        ArgumentCaptor<List<Task>> tasksCaptor = ArgumentCaptor.forClass(List.class);
+        verify(taskRepository, atMost(2)).saveAll(tasksCaptor.capture());
+        verify(taskRepository, never()).save(any(Task.class));
+        assertThat(tasksCaptor.getAllValues().stream().mapToInt(List::size).sum()).isEqualTo(5);
+        queue.destroy();
+    }
+
+    @Test
+    void should_fail_pending_tasks_and_reject_new_ones_after_group_committer_is_stopped() throws Exception {
+        var committer = new TaskGroupCommitter(tasks -> {}, Duration.ofSeconds(10), 100, Duration.ofSeconds(10));
+        var added = new CompletableFuture<Exception>();
+        var producer = new Thread(() -> {
+            try {
+                committer.add(someTask(1L, "task_type_1", "{}"));
+                added.complete(null);
+            } catch (Exception e) {
+                added.complete(e);
+            }
+        });
+        producer.start();
+
+        committer.stop();
+
+        assertThat(added.get(5, TimeUnit.SECONDS)).hasMessage("task group committer is stopped");
+        assertThatThrownBy(() -> committer.add(someTask(1L, "task_type_1", "{}")))
+                .hasMessage("task group committer is stopped");
+    }
+
+    @Test
+    void should_fail_add_when_group_commit_does_not_complete_in_timeout() {
+        var commitReleased = new CountDownLatch(1);
+        var committer = new TaskGroupCommitter(tasks -> {
+            try {
+                commitReleased.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, Duration.ofMillis(1), 100, Duration.ofMillis(100));
+
+        assertThatThrownBy(() -> committer.add(someTask(1L, "task_type_1", "{}")))
+                .hasMessageStartingWith("task is not group committed in PT0.1S");
+        commitReleased.countDown();
+        committer.stop();
+    }
+
+    @Test
+    void should_renew_lease_of_node_instead_of_heartbeat_of_tasks() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+
+        queue.heartbeat(List.of(someTask(1L, "task_type_1", "{}"), someTask(2L, "task_type_2", "{}")));
+
+        var leaseExpiresAtCaptor = ArgumentCaptor.forClass(LocalDateTime.class);
+        verify(taskRepository, times(1)).renewConsumerLease(eq(queue.getNodeId()), leaseExpiresAtCaptor.capture());
+        assertThat(leaseExpiresAtCaptor.getValue()).isAfter(LocalDateTime.now().plusSeconds(20));
+        verify(taskRepository, never()).saveAll(anyList());
+    }
+
+    @Test
+    void should_claim_tasks_as_owner_after_lease_is_in_place() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString())).thenReturn(List.of());
+
+        queue.popTasks(1);
+        queue.popTasks(1);
+
+        // the lease is renewed by the heartbeat later on, not by every claim
+        verify(taskRepository, times(1)).renewConsumerLease(eq(queue.getNodeId()), any(LocalDateTime.class));
+        verify(taskRepository, times(2)).claimNewTasks(eq(1), anyCollection(), eq(queue.getNodeId()));
+    }
+
+    @Test
+    void should_claim_from_own_partitions_first_and_steal_from_others_to_fill_up_claim() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        queue.enablePartitions(4, List.of(1, 2));
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+        var task1 = someTask(1L, "task_type_1", "{}");
+        var task2 = someTask(2L, "task_type_1", "{}");
+        when(taskRepository.claimNewTasks(eq(3), anyCollection(), anyString(), eq(List.of(1, 2))))
+                .thenReturn(List.of(task1));
+        when(taskRepository.claimNewTasks(eq(2), anyCollection(), anyString(), eq(List.of(0, 3))))
+                .thenReturn(List.of(task2));
+
+        assertThat(queue.popTasks(3)).containsExactly(task1, task2);
+
+        queue.addTask("task_type_1", "arg");
+        queue.addTask("task_type_1", "arg", null, 0, "tenant-1");
+        ArgumentCaptor<Task> taskCaptor = ArgumentCaptor.forClass(Task.class);
+        verify(taskRepository, times(2)).save(taskCaptor.capture());
+        assertThat(taskCaptor.getAllValues().get(0).getPartitionNo()).isEqualTo(queue.partitionOf("task_type_1"));
+        assertThat(taskCaptor.getAllValues().get(1).getPartitionNo()).isEqualTo(queue.partitionOf("tenant-1"));
+        verify(taskRepository, never()).claimNewTasks(anyInt(), anyCollection(), anyString());
+    }
+
+    @Test
+    void should_skip_tasks_of_taken_or_recently_added_dedup_keys() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        // key-2 is taken, so the repository skips its task
+        when(taskRepository.insertUniqueTasks(anyList())).thenAnswer(answer -> answer.<List<Task>>getArgument(0).stream()
+                .filter(task -> !task.getDedupKey().equals("key-2"))
+                .collect(Collectors.toList()));
+
+        assertThat(queue.addUniqueTasks("task_type_1", List.of("key-1", "key-2", "key-1"), arg -> arg)).isEqualTo(1);
+        assertThat(queue.addUniqueTask("task_type_1", "arg", "key-1")).isFalse();
+
+        ArgumentCaptor<List<Task>> tasksCaptor = ArgumentCaptor.forClass(List.class);
+        // the second key-1 is rejected by the cache of recently added keys
+        verify(taskRepository, times(1)).insertUniqueTasks(tasksCaptor.capture());
+        assertThat(tasksCaptor.getValue()).extracting(Task::getDedupKey).containsExactly("key-1", "key-2");
+        verify(taskRepository, never()).releaseDedupKeys(anyCollection(), anyCollection(), any());
+    }
+
+    @Test
+    void should_release_dedup_keys_out_of_their_window_when_sweeping() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        when(taskRepository.tryAcquireLock(eq("zombie_sweeper"), anyString(), any(), any())).thenReturn(true);
+
+        var sweptAt = LocalDateTime.now();
+        queue.cleanZombieTasks();
+
+        var createdBeforeCaptor = ArgumentCaptor.forClass(LocalDateTime.class);
+        verify(taskRepository, times(1)).releaseDedupKeys(eq(List.of()), eq(Set.of()), createdBeforeCaptor.capture());
+        assertThat(createdBeforeCaptor.getValue()).isBetween(sweptAt.minusHours(1), LocalDateTime.now().minusHours(1));
+    }
+
+    @Test
+    void should_release_tasks_of_expired_nodes_only_on_node_holding_sweeper_lock() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        when(taskRepository.tryAcquireLock(eq("zombie_sweeper"), eq(queue.getNodeId()), any(), any()))
+                .thenReturn(false).thenReturn(true);
+        when(taskRepository.findExpiredConsumers(any(LocalDateTime.class))).thenReturn(List.of("node-1"));
+        when(taskRepository.releaseTasksOfOwner(eq("node-1"), any(LocalDateTime.class), anyString(), anyInt())).thenReturn(2);
+
+        queue.cleanZombieTasks();
+        verify(taskRepository, never()).findExpiredConsumers(any());
+        verify(taskRepository, never()).cleanZombieTasks(anyLong(), anyInt());
+
+        queue.cleanZombieTasks();
+        verify(taskRepository, times(1)).releaseTasksOfOwner(eq("node-1"), any(LocalDateTime.class), anyString(), anyInt());
+        verify(taskRepository, times(1)).deleteConsumer(eq("node-1"), any(LocalDateTime.class));
+        verify(taskRepository, times(1)).cleanZombieTasks(anyLong(), anyInt());
+        verify(taskRepository, times(1)).touchNewTaskWatermark();
+    }
+
+    @Test
+    void should_add_delayed_task_with_due_at() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var notBefore = Instant.now().plus(Duration.ofHours(1));
+
+        queue.addTask("task_type_1", new TaskType1Arg("arg 1"), notBefore);
+
+        var taskCaptor = ArgumentCaptor.forClass(Task.class);
+        verify(taskRepository, times(1)).save(taskCaptor.capture());
+        assertThat(taskCaptor.getValue().getDueAt()).isEqualTo(LocalDateTime.ofInstant(notBefore, ZoneId.systemDefault()));
+    }
+
+    @Test
+    void should_rank_task_ahead_by_priority_aging_steps() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var notBefore = Instant.now();
+
+        queue.addTask("task_type_1", new TaskType1Arg("arg 1"), notBefore, 2);
+
+        var taskCaptor = ArgumentCaptor.forClass(Task.class);
+        verify(taskRepository, times(1)).save(taskCaptor.capture());
+        var dueAt = LocalDateTime.ofInstant(notBefore, ZoneId.systemDefault());
+        assertThat(taskCaptor.getValue().getPriority()).isEqualTo(2);
+        assertThat(taskCaptor.getValue().getDueAt()).isEqualTo(dueAt);
+        assertThat(taskCaptor.getValue().getRankAt()).isEqualTo(dueAt.minusMinutes(2));
+    }
+
+    @Test
+    void should_wake_up_consumer_when_next_task_is_due() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        var claimedAt = new CopyOnWriteArrayList<LocalDateTime>();
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString())).thenAnswer(answer -> {
+            claimedAt.add(LocalDateTime.now());
+            return List.of();
+        });
+        var dueAt = LocalDateTime.now().plus(Duration.ofMillis(300));
+        when(taskRepository.findNextDueAt(anyCollection())).thenReturn(dueAt).thenReturn(null);
+
+        consumer.start();
+
+        await().untilAsserted(() -> assertThat(claimedAt).hasSize(2));
+        // the millis to wait are truncated, so the consumer may wake up a moment early
+        assertThat(claimedAt.get(1)).isAfter(dueAt.minus(Duration.ofMillis(10)));
+    }
+
+    @Test
+    void should_skip_task_types_out_of_rate_limit_when_claiming() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        consumer.registerTask("task_type_1", mock(TaskHandler.class), TaskOptions.builder().rateLimit(0.1).build());
+        consumer.registerTask("task_type_2", mock(TaskHandler.class));
+
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString()))
+                .thenReturn(List.of(someTask(1L, "task_type_1", "{}")))
+                .thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+
+        await().untilAsserted(() -> verify(taskRepository, times(2)).claimNewTasks(eq(1), anyCollection(), anyString()));
+        ArgumentCaptor<Collection<String>> excludedTaskTypesCaptor = ArgumentCaptor.forClass(Collection.class);
+        // the second claim waits for a permit of task_type_1 instead of claiming again
+        verify(taskRepository, times(2)).claimNewTasks(eq(1), excludedTaskTypesCaptor.capture(), anyString());
+        assertThat(excludedTaskTypesCaptor.getAllValues().get(0)).isEmpty();
+        assertThat(excludedTaskTypesCaptor.getAllValues().get(1)).containsExactly("task_type_1");
+    }
+
+    @Test
+    void should_retry_failed_task_with_backoff_and_move_it_to_dead_letter_after_max_attempts() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        var options = TaskOptions.builder().maxAttempts(2).retryBackoff(Duration.ofMinutes(1)).build();
+        consumer.registerTask("task_type_1", argString -> {
+            throw new RuntimeException("dependency is down");
+        }, options);
+
+        var task1 = someTask(1L, "task_type_1", "{}");
+        var task2 = someTask(2L, "task_type_1", "{}");
+        task1.setAttempts(1);
+        task2.setAttempts(2);
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString()))
+                .thenReturn(List.of(task1))
+                .thenReturn(List.of(task2))
+                .thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+
+        await().untilAsserted(() -> verify(taskRepository, times(2)).addEvents(anyList(), eq(20)));
+        assertThat(task1.getStatus()).isEqualTo(TaskStatus.PENDING);
+        assertThat(task1.getMaxAttempts()).isEqualTo(2);
+        assertThat(task1.getDueAt()).isAfter(LocalDateTime.now().plusSeconds(50));
+        assertThat(task1.getMessage()).isEqualTo("dependency is down");
+        assertThat(task2.getStatus()).isEqualTo(TaskStatus.DEAD_LETTER);
+        assertThat(task2.getEndedAt()).isNotNull();
+
+        ArgumentCaptor<List<TaskEvent>> eventsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(taskRepository, times(2)).addEvents(eventsCaptor.capture(), eq(20));
+        assertThat(eventsCaptor.getAllValues().get(0).get(0).getTaskId()).isEqualTo(1L);
+        assertThat(eventsCaptor.getAllValues().get(0).get(0).getType()).isEqualTo(TaskEvent.Type.RETRIED);
+        assertThat(eventsCaptor.getAllValues().get(1).get(0).getTaskId()).isEqualTo(2L);
+        assertThat(eventsCaptor.getAllValues().get(1).get(0).getType()).isEqualTo(TaskEvent.Type.DEAD_LETTER);
+        assertThat(eventsCaptor.getAllValues().get(1).get(0).getMessage()).isEqualTo("dependency is down");
+    }
+
+    @Test
+    void should_keep_only_the_last_error_of_task_truncated() {
+        var task = someTask(1L, "task_type_1", "{}");
+        task.markRetrying(new RuntimeException("first error"), LocalDateTime.now(), Duration.ofMinutes(1));
+        task.markDeadLetter(new RuntimeException("x".repeat(Task.MAX_MESSAGE_LENGTH + 100)));
+
+        assertThat(task.getMessage()).isEqualTo("x".repeat(Task.MAX_MESSAGE_LENGTH));
+    }
+
+    @Test
+    void should_grow_retry_backoff_exponentially_up_to_max() {
+        var options = TaskOptions.builder().retryBackoff(Duration.ofSeconds(1)).maxRetryBackoff(Duration.ofSeconds(10)).build();
+
+        assertThat(options.retryBackoff(1)).isEqualTo(Duration.ofSeconds(1));
+        assertThat(options.retryBackoff(3)).isEqualTo(Duration.ofSeconds(4));
+        assertThat(options.retryBackoff(5)).isEqualTo(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void should_fail_timed_out_task_and_free_its_worker_slot() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        var stuckTaskReleased = new CountDownLatch(1);
+        consumer.registerTask("task_type_1", argString -> {
+            if (argString.equals("stuck")) {
+                // ignores interruption, so the worker thread stays stuck after the timeout
+                while (stuckTaskReleased.getCount() > 0) {
+                    try {
+                        stuckTaskReleased.await();
+                    } catch (InterruptedException e) {
+                        log.info("interrupted, but keep stuck");
+                    }
+                }
+            }
+        }, TaskOptions.builder().timeout(Duration.ofMillis(200)).build());
+
+        var task1 = someTask(1L, "task_type_1", "stuck");
+        var task2 = someTask(2L, "task_type_1", "{}");
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString()))
+                .thenReturn(List.of(task1))
+                .thenReturn(List.of(task2))
+                .thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+
+        await().untilAsserted(() -> assertThat(task2.isSucceeded()).isTrue());
+        assertThat(task1.getStatus()).isEqualTo(TaskStatus.PENDING);
+        assertThat(task1.getMessage()).isEqualTo("task timed out after PT0.2S");
+        stuckTaskReleased.countDown();
+    }
+
+    @Test
+    void should_notify_running_handler_of_cancellation() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        consumer.registerTask("task_type_1", new TaskHandler() {
+            @Override
+            public void run(String argString) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void run(String argString, TaskContext context) {
+                while (!context.isCancelled()) {
+                    Thread.onSpinWait();
+                }
+            }
+        });
+
+        var task1 = someTask(1L, "task_type_1", "{}");
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString())).thenReturn(List.of(task1)).thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+        when(taskRepository.cancelTask(eq(1L), any(LocalDateTime.class))).thenReturn(1);
+
+        consumer.start();
+        verify(taskRepository, timeout(5000)).save(any(Task.class));
+        assertThat(queue.cancel(1L)).isTrue();
+        // the consumer claims again once the cancelled task is done
+        verify(taskRepository, timeout(5000).times(2)).claimNewTasks(eq(1), anyCollection(), anyString());
+
+        // only marked running, the cancelled status is kept
+        verify(taskRepository, times(1)).save(any(Task.class));
+        assertThat(task1.getStatus()).isEqualTo(TaskStatus.RUNNING);
+        // nothing is running, so there is nothing to check for cancellation
+        consumer.triggerHeartBeat();
+        verify(taskRepository, never()).findCancelledTaskIds(anyCollection());
+    }
+
+    @Test
+    void should_find_cancelled_tasks_on_heartbeat() {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        when(taskRepository.findCancelledTaskIds(eq(List.of(1L, 2L)))).thenReturn(List.of(2L));
+
+        var cancelledIds = queue.heartbeat(List.of(someTask(1L, "task_type_1", "{}"), someTask(2L, "task_type_1", "{}")));
+
+        assertThat(cancelledIds).containsExactly(2L);
+    }
+
+    @Test
+    void should_release_prefetched_tasks_and_wait_for_running_tasks_when_stopping() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 2, 1);
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        consumer.registerTask("task_type_1", argString -> runSlowly(running, maxRunning));
+
+        var task1 = someTask(1L, "task_type_1", "{}");
+        var task2 = someTask(2L, "task_type_1", "{}");
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString())).thenReturn(List.of(task1, task2)).thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+        // task 1 is running and task 2 is waiting for the only worker
+        verify(taskRepository, timeout(5000)).save(any(Task.class));
+        consumer.stop(Duration.ofSeconds(1));
+
+        verify(taskRepository, times(1)).releaseTasks(eq(List.of(2L)));
+        verify(taskRepository, times(1)).claimNewTasks(anyInt(), anyCollection(), anyString());
+        assertThat(task1.isSucceeded()).isTrue();
+        assertThat(task2.getStatus()).isEqualTo(TaskStatus.PENDING);
+    }
+
+    @Test
+    void should_interrupt_and_release_running_tasks_after_drain_timeout() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        var started = new CountDownLatch(1);
+        consumer.registerTask("task_type_1", argString -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        var task1 = someTask(1L, "task_type_1", "{}");
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString())).thenReturn(List.of(task1)).thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        consumer.stop(Duration.ofMillis(200));
+
+        verify(taskRepository, timeout(5000)).releaseTasks(eq(List.of(1L)));
+        // running -> nothing saved after being interrupted
+        verify(taskRepository, after(100).times(1)).save(any(Task.class));
+    }
+
+    @Test
+    void should_release_tasks_claimed_by_claim_in_flight_when_stopping() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        consumer.registerTask("task_type_1", mock(TaskHandler.class));
+
+        var claimStarted = new CountDownLatch(1);
+        var stopped = new CountDownLatch(1);
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString())).thenAnswer(answer -> {
+            claimStarted.countDown();
+            stopped.await();
+            return List.of(someTask(1L, "task_type_1", "{}"));
+        });
+
+        consumer.start();
+        assertThat(claimStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        consumer.stop(Duration.ofMillis(50));
+        stopped.countDown();
+
+        verify(taskRepository, timeout(5000)).releaseTasks(eq(List.of(1L)));
+        verify(taskRepository, never()).save(any(Task.class));
+    }
+
+    @Test
+    void should_run_tasks_of_batch_type_in_one_call_and_save_results_per_task() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 3, 1);
+        var batches = new CopyOnWriteArrayList<List<String>>();
+        consumer.registerBatchTask("task_type_1", (argStrings, result) -> {
+            batches.add(argStrings);
+            result.fail(1, new RuntimeException("failed"));
+        }, TaskOptions.builder().maxBatchSize(3).build());
+
+        var task1 = someTask(1L, "task_type_1", "{\"arg\":\"arg 1\"}");
+        var task2 = someTask(2L, "task_type_1", "{\"arg\":\"arg 2\"}");
+        var task3 = someTask(3L, "task_type_1", "{\"arg\":\"arg 3\"}");
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString()))
+                .thenReturn(List.of(task1, task2, task3))
+                .thenReturn(List.of());
+        when(taskRepository.saveAll(anyList())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+
+        // running -> results, each saved for the whole batch
+        await().untilAsserted(() -> verify(taskRepository, times(2)).saveAll(anyList()));
+        assertThat(batches).containsExactly(
+                List.of("{\"arg\":\"arg 1\"}", "{\"arg\":\"arg 2\"}", "{\"arg\":\"arg 3\"}"));
+        verify(taskRepository, never()).save(any(Task.class));
+        assertThat(task1.getStatus()).isEqualTo(TaskStatus.SUCCEEDED);
+        assertThat(task2.getStatus()).isEqualTo(TaskStatus.PENDING);
+        assertThat(task2.getMessage()).isEqualTo("failed");
+        assertThat(task3.getStatus()).isEqualTo(TaskStatus.SUCCEEDED);
+    }
+
+    @Test
+    void should_run_partial_batch_after_linger() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 10, 1);
+        var batchSizes = new CopyOnWriteArrayList<Integer>();
+        var batchRunAtNanos = new AtomicLong();
+        var claims = new AtomicInteger();
+        var claimsBeforeBatch = new AtomicInteger();
+        consumer.registerBatchTask("task_type_1", (argStrings, result) -> {
+            batchRunAtNanos.set(System.nanoTime());
+            claimsBeforeBatch.set(claims.get());
+            batchSizes.add(argStrings.size());
+        }, TaskOptions.builder().maxBatchSize(10).batchLinger(Duration.ofMillis(300)).build());
+
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString())).thenAnswer(answer -> {
+            switch (claims.incrementAndGet()) {
+                case 1:
+                    return List.of(someTask(1L, "task_type_1", "{}"));
+                case 2:
+                    return List.of(someTask(2L, "task_type_1", "{}"));
+                default:
+                    return List.of();
+            }
+        });
+        when(taskRepository.saveAll(anyList())).thenAnswer(answer -> answer.getArgument(0));
+
+        var startedAtNanos = System.nanoTime();
+        consumer.start();
+
+        // the partial batch does not take the only worker, so the consumer claims on to fill it
+        await().untilAsserted(() -> assertThat(batchSizes).containsExactly(2));
+        // counted in the handler, as the consumer claims again after the batch is dispatched
+        assertThat(claimsBeforeBatch.get()).isGreaterThanOrEqualTo(3);
+        assertThat(batchRunAtNanos.get() - startedAtNanos).isGreaterThanOrEqualTo(Duration.ofMillis(300).toNanos());
+    }
+
+    @Test
+    void should_keep_async_tasks_in_flight_without_workers_and_complete_them_by_callbacks() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 5, 1);
+        var futures = new ConcurrentHashMap<Long, CompletableFuture<Void>>();
+        consumer.registerAsyncTask("task_type_1", (argString, context) ->
+                futures.computeIfAbsent(context.getTaskId(), id -> new CompletableFuture<>()));
+
+        var task1 = someTask(1L, "task_type_1", "{}");
+        var task2 = someTask(2L, "task_type_1", "{}");
+        var task3 = someTask(3L, "task_type_1", "{}");
+        when(taskRepository.claimNewTasks(anyInt(), anyCollection(), anyString()))
+                .thenReturn(List.of(task1, task2, task3))
+                .thenReturn(List.of());
+        when(taskRepository.save(any())).thenAnswer(answer -> answer.getArgument(0));
+
+        consumer.start();
+
+        // all in flight with a single worker, only marked running
+        await().untilAsserted(() -> {
+            assertThat(futures).hasSize(3);
+            verify(taskRepository, times(3)).save(any(Task.class));
+        });
+
+        futures.get(1L).complete(null);
+        futures.get(2L).completeExceptionally(new RuntimeException("failed"));
+        futures.get(3L).complete(null);
+
+        verify(taskRepository, timeout(5000).times(6)).save(any(Task.class));
+        assertThat(task1.getStatus()).isEqualTo(TaskStatus.SUCCEEDED);
+        assertThat(task2.getStatus()).isEqualTo(TaskStatus.PENDING);
+        assertThat(task2.getMessage()).isEqualTo("failed");
+        assertThat(task3.getStatus()).isEqualTo(TaskStatus.SUCCEEDED);
+    }
+
+    @Test
+    void should_run_typed_handler_with_arg_read_from_large_payload() throws InterruptedException {
+        TransactionTemplate tt = mockTransactionTemplate();
+
+        var taskRepository = mock(TaskRepository.class);
+        var queue = new TaskQueue(taskRepository, tt, new ObjectMapper());
+        var consumer = new TaskQueueConsumer(queue, 1, 1);
+        var args = new CopyOnWriteArrayList<TypedArg>();
+        consumer.registerTask("task_type_1", TypedArg.class, args::add);
+
+        var value = "a".repeat(10000);
+        when(taskRepository.save(any())).thenAnswer(answer -> {
+            Task task = answer.getArgument(0);
+            task.setId(1L);
+            return task;
+        });
+        queue.addTask("task_type_1", new TypedArg(value));
+
+        var taskCaptor = ArgumentCaptor.forClass(Task.class);
+        verify(taskRepository, times(1)).save(taskCaptor.capture());
+        var payloadsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(taskRepository, times(1)).savePayloads(payloadsCaptor.capture());
+        var payload = (TaskPayload) payloadsCaptor.getValue().get(0);
+        assertThat(payload.getTaskId()).isEqualTo(1L);
+        assertThat(taskCaptor.getValue().getTaskArg()).isNull();
+
+        var task1 = someTask(1L, "task_type_1", null);
+        when(taskRepository.claimNewTasks(eq(1), anyCollection(), anyString())).thenReturn(List.of(task1)).thenReturn(List.of());
+        when(taskRepository.findPayloads(eq(List.of(1L)))).thenReturn(List.of(payload));
+        consumer.start();
+
+        await().untilAsserted(() -> assertThat(task1.isSucceeded()).isTrue());
+        assertThat(args).containsExactly(new TypedArg(value));
+    }
+
+    private void runSlowly(AtomicInteger running, AtomicInteger maxRunning) {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
     private TransactionTemplate mockTransactionTemplate() {
         var tt = mock(TransactionTemplate.class);
         when(tt.execute(any())).thenAnswer(answer -> {
@@ -142,4 +904,12 @@ public class TaskQueueTest {
 
         private String arg;
     }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class TypedArg {
+
+        private String value;
+    }
 }
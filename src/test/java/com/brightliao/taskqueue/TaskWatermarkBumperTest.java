@@ -0,0 +1,39 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TaskWatermarkBumperTest {
+
+    @Test
+    void should_coalesce_requests_arriving_while_a_bump_is_queued() throws InterruptedException {
+        var bumpStarted = new CountDownLatch(1);
+        var bumpReleased = new CountDownLatch(1);
+        var bumpedCount = new AtomicInteger();
+        var bumper = new TaskWatermarkBumper(() -> {
+            bumpStarted.countDown();
+            try {
+                bumpReleased.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            bumpedCount.incrementAndGet();
+        });
+
+        bumper.request();
+        assertThat(bumpStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        // the first bump is running, these are all served by one more bump after it
+        bumper.request();
+        bumper.request();
+        bumper.request();
+        bumpReleased.countDown();
+        bumper.stop();
+
+        assertThat(bumpedCount.get()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,35 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TaskWatermarkPollerTest {
+
+    @Test
+    void should_notify_only_when_watermark_changed() {
+        var watermark = new AtomicLong(1);
+        var pollCount = new AtomicInteger();
+        var notifiedCount = new AtomicInteger();
+        var poller = new TaskWatermarkPoller(() -> {
+            pollCount.incrementAndGet();
+            return watermark.get();
+        }, notifiedCount::incrementAndGet, Duration.ofMillis(5), Duration.ofMillis(20));
+
+        await().until(() -> pollCount.get() >= 5);
+        assertThat(notifiedCount.get()).isEqualTo(0);
+
+        watermark.incrementAndGet();
+        await().until(() -> notifiedCount.get() == 1);
+        int polledAtNotify = pollCount.get();
+        await().until(() -> pollCount.get() >= polledAtNotify + 5);
+        assertThat(notifiedCount.get()).isEqualTo(1);
+
+        poller.stop();
+    }
+}
@@ -0,0 +1,48 @@
+package com.brightliao.taskqueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class TokenBucketTest {
+
+    @Test
+    void should_allow_burst_then_refill_at_rate() {
+        var now = new AtomicLong();
+        var bucket = new TokenBucket(2, 2, now::get);
+
+        bucket.take(2);
+        assertThat(bucket.hasPermit()).isFalse();
+        assertThat(bucket.nanosUntilPermit()).isEqualTo(500_000_000L);
+
+        now.addAndGet(500_000_000L);
+        assertThat(bucket.hasPermit()).isTrue();
+    }
+
+    @Test
+    void should_pay_back_debt_before_giving_new_permits() {
+        var now = new AtomicLong();
+        var bucket = new TokenBucket(1, 1, now::get);
+
+        bucket.take(3);
+        assertThat(bucket.nanosUntilPermit()).isEqualTo(3_000_000_000L);
+
+        now.addAndGet(2_000_000_000L);
+        assertThat(bucket.hasPermit()).isFalse();
+        now.addAndGet(1_000_000_000L);
+        assertThat(bucket.hasPermit()).isTrue();
+    }
+
+    @Test
+    void should_not_store_more_permits_than_burst() {
+        var now = new AtomicLong();
+        var bucket = new TokenBucket(1, 2, now::get);
+
+        now.addAndGet(10_000_000_000L);
+        bucket.take(2);
+
+        assertThat(bucket.hasPermit()).isFalse();
+    }
+}